@@ -0,0 +1,9 @@
+#!/bin/bash
+
+echo "=== Выделение памяти реактором на запрос, обслуженный из кэша ==="
+
+# Аргументы: число запросов в замере, число кадров в одной пачке
+REQUESTS=${1:-500000}
+PIPELINE=${2:-32}
+
+java -cp build/libs/Task_1J-jmh.jar ru.nsu.nocode.bench.HitPathAllocationBenchmark "$REQUESTS" "$PIPELINE"
@@ -0,0 +1,10 @@
+#!/bin/bash
+
+echo "=== Сравнение режимов reactor и virtual на постоянных соединениях ==="
+
+# Аргументы: число простаивающих соединений для оценки памяти, число клиентов под нагрузкой, длительность прогона в секундах
+IDLE=${1:-2000}
+CLIENTS=${2:-32}
+SECONDS_PER_RUN=${3:-10}
+
+java -cp build/libs/Task_1J-jmh.jar ru.nsu.nocode.bench.ModeComparisonBenchmark "$IDLE" "$CLIENTS" "$SECONDS_PER_RUN"
@@ -0,0 +1,10 @@
+#!/bin/bash
+
+echo "=== Масштабирование числа подключений в секунду по числу реакторов ==="
+
+# Аргументы: список числа реакторов, число клиентских потоков, длительность каждого прогона в секундах
+REACTORS=${1:-0,1,2,4,8}
+CLIENTS=${2:-64}
+SECONDS_PER_RUN=${3:-10}
+
+java -cp build/libs/Task_1J-jmh.jar ru.nsu.nocode.bench.ReactorScalingBenchmark "$REACTORS" "$CLIENTS" "$SECONDS_PER_RUN"
@@ -0,0 +1,104 @@
+package ru.nsu.nocode.bench;
+
+import ru.nsu.nocode.protocol.Protocol;
+import ru.nsu.nocode.protocol.Request;
+import ru.nsu.nocode.server.CertificateUtils;
+import ru.nsu.nocode.server.KeyServer;
+import ru.nsu.nocode.server.ServerConfig;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.PrivateKey;
+
+/**
+ * Измеряет, сколько байт выделяет поток реактора на один запрос, обслуженный из кэша.
+ * Сервер работает в режиме с одним селектором в потоке бенчмарка, клиент шлёт по одному
+ * постоянному соединению пачки кадров с одним и тем же именем. Счётчик берётся из
+ * com.sun.management.ThreadMXBean до и после замера.
+ *
+ * Usage: HitPathAllocationBenchmark [requests=500000] [pipeline=32]
+ */
+public class HitPathAllocationBenchmark {
+    private static final String HOT_NAME = "bench-hot";
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        int pipeline = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+        PrivateKey issuerKey = CertificateUtils.generateRSAKeyPair(2048).getPrivate();
+        ServerConfig config = new ServerConfig(0, 2);
+        config.keyPoolLow = 0;
+        config.keyPoolHigh = 0;
+        KeyServer server = new KeyServer(config, issuerKey, "CN=BenchCA");
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "bench-server");
+        serverThread.start();
+
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        try (SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()))) {
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ch.write(ByteBuffer.wrap(new byte[] { Protocol.versionByte(Protocol.VERSION_1) }));
+            ByteBuffer batch = encodeBatch(pipeline);
+            ByteBuffer in = ByteBuffer.allocateDirect(1 << 20);
+
+            roundTrips(ch, encodeBatch(1), 1, in);
+            roundTrips(ch, batch, Math.max(1, requests / 5 / pipeline), in);
+
+            long buffersBefore = server.getReadBufferAllocations();
+            long allocatedBefore = threads.getThreadAllocatedBytes(serverThread.threadId());
+            long started = System.nanoTime();
+            int batches = Math.max(1, requests / pipeline);
+            roundTrips(ch, batch, batches, in);
+            long elapsed = System.nanoTime() - started;
+            long allocated = threads.getThreadAllocatedBytes(serverThread.threadId()) - allocatedBefore;
+
+            long served = (long) batches * pipeline;
+            System.out.printf("requests:            %d (pipeline %d)%n", served, pipeline);
+            System.out.printf("throughput:          %.0f req/s%n", served * 1e9 / elapsed);
+            System.out.printf("reactor allocation:  %.1f bytes/request%n", allocated / (double) served);
+            System.out.printf("read buffers:        %d allocated during run%n",
+                server.getReadBufferAllocations() - buffersBefore);
+        } finally {
+            server.shutdown();
+            serverThread.join();
+        }
+    }
+
+    private static ByteBuffer encodeBatch(int pipeline) {
+        ByteBuffer frame = Protocol.encodeRequest(new Request(1, HOT_NAME));
+        ByteBuffer batch = ByteBuffer.allocateDirect(frame.remaining() * pipeline);
+        for (int i = 0; i < pipeline; i++) {
+            batch.putShort(frame.getShort(0)).putInt(i).put(frame.slice(6, frame.remaining() - 6));
+        }
+        return batch.flip();
+    }
+
+    private static void roundTrips(SocketChannel ch, ByteBuffer batch, int batches, ByteBuffer in) throws IOException {
+        int frames = batch.capacity() / (batch.getShort(0) + 2);
+        for (int b = 0; b < batches; b++) {
+            batch.rewind();
+            while (batch.hasRemaining()) ch.write(batch);
+            int pending = frames;
+            while (pending > 0) {
+                if (ch.read(in) == -1) throw new IOException("Server closed the connection");
+                in.flip();
+                while (in.remaining() >= 4 && in.remaining() >= 4 + in.getInt(in.position())) {
+                    int len = in.getInt();
+                    if (in.get(in.position() + 4) != Protocol.STATUS_OK) throw new IOException("Error response");
+                    in.position(in.position() + len);
+                    pending--;
+                }
+                in.compact();
+            }
+        }
+    }
+}
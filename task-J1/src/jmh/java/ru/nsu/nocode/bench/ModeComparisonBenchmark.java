@@ -0,0 +1,154 @@
+package ru.nsu.nocode.bench;
+
+import ru.nsu.nocode.protocol.Protocol;
+import ru.nsu.nocode.protocol.Request;
+import ru.nsu.nocode.server.CertificateUtils;
+import ru.nsu.nocode.server.KeyServer;
+import ru.nsu.nocode.server.ServerConfig;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Сравнивает режимы reactor и virtual на постоянных соединениях с попаданием в кэш:
+ * пропускную способность и хвосты задержки при closed-loop нагрузке, а также память на одно
+ * простаивающее соединение (куча плюс прямые буферы после GC). Клиенты работают в том же процессе,
+ * их объекты входят в оценку памяти одинаково для обоих режимов - сравнивать стоит разницу.
+ *
+ * Usage: ModeComparisonBenchmark [idle connections=2000] [clients=32] [seconds=10]
+ */
+public class ModeComparisonBenchmark {
+    private static final String HOT_NAME = "bench-hot";
+
+    public static void main(String[] args) throws Exception {
+        int idle = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        PrivateKey issuerKey = CertificateUtils.generateRSAKeyPair(2048).getPrivate();
+        System.out.printf("%-8s %12s %10s %10s %10s %10s %14s%n",
+            "mode", "req/s", "p50 us", "p99 us", "p99.9 us", "max us", "bytes/conn");
+        for (String mode : new String[] { "reactor", "virtual" }) {
+            run(issuerKey, mode, idle, clients, seconds);
+        }
+    }
+
+    private static void run(PrivateKey issuerKey, String mode, int idle, int clients, int seconds) throws Exception {
+        ServerConfig config = new ServerConfig(0, 2);
+        config.mode = mode;
+        config.keyPoolLow = 0;
+        config.keyPoolHigh = 0;
+        KeyServer server = new KeyServer(config, issuerKey, "CN=BenchCA");
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "bench-server");
+        serverThread.start();
+        InetSocketAddress addr = new InetSocketAddress("127.0.0.1", server.getPort());
+
+        long before = usedMemory();
+        List<SocketChannel> parked = new ArrayList<>();
+        for (int i = 0; i < idle; i++) {
+            SocketChannel ch = connect(addr);
+            roundTrip(ch, i);
+            parked.add(ch);
+        }
+        long perConnection = (usedMemory() - before) / Math.max(1, idle);
+        for (SocketChannel ch : parked) ch.close();
+
+        long[][] latencies = new long[clients][];
+        int[] counts = new int[clients];
+        CountDownLatch done = new CountDownLatch(clients);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int t = 0; t < clients; t++) {
+            int slot = t;
+            Thread th = new Thread(() -> {
+                long[] lat = new long[1 << 16];
+                int n = 0;
+                try (SocketChannel ch = connect(addr)) {
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        roundTrip(ch, n);
+                        if (n == lat.length) lat = Arrays.copyOf(lat, n * 2);
+                        lat[n++] = System.nanoTime() - start;
+                    }
+                } catch (IOException e) {
+                    System.err.println("Client failed: " + e.getMessage());
+                } finally {
+                    latencies[slot] = lat;
+                    counts[slot] = n;
+                    done.countDown();
+                }
+            });
+            th.setDaemon(true);
+            th.start();
+        }
+        done.await();
+        server.shutdown();
+        serverThread.join();
+
+        int total = 0;
+        for (int c : counts) total += c;
+        long[] all = new long[total];
+        int pos = 0;
+        for (int t = 0; t < clients; t++) {
+            System.arraycopy(latencies[t], 0, all, pos, counts[t]);
+            pos += counts[t];
+        }
+        Arrays.sort(all);
+        System.out.printf("%-8s %12.0f %10.1f %10.1f %10.1f %10.1f %14d%n", mode, total / (double) seconds,
+            percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999),
+            total == 0 ? 0.0 : all[total - 1] / 1000.0, perConnection);
+    }
+
+    private static SocketChannel connect(InetSocketAddress addr) throws IOException {
+        SocketChannel ch = SocketChannel.open(addr);
+        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        ch.write(ByteBuffer.wrap(new byte[] { Protocol.versionByte(Protocol.VERSION_1) }));
+        return ch;
+    }
+
+    private static void roundTrip(SocketChannel ch, int id) throws IOException {
+        ByteBuffer frame = Protocol.encodeRequest(new Request(id, HOT_NAME));
+        while (frame.hasRemaining()) ch.write(frame);
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(ch, header);
+        readFully(ch, ByteBuffer.allocate(header.getInt(0)));
+    }
+
+    private static void readFully(SocketChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf) < 0) throw new IOException("Server closed the connection");
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0.0;
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)] / 1000.0;
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) used += pool.getMemoryUsed();
+        }
+        return used;
+    }
+}
@@ -0,0 +1,99 @@
+package ru.nsu.nocode.bench;
+
+import ru.nsu.nocode.server.CertificateUtils;
+import ru.nsu.nocode.server.KeyServer;
+import ru.nsu.nocode.server.ServerConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Измеряет число обслуженных подключений в секунду при разном числе реакторов.
+ * Все клиенты запрашивают одно и то же имя, поэтому после прогрева работает только кэш и сетевой ввод-вывод.
+ *
+ * Usage: ReactorScalingBenchmark [reactors=0,1,2,4,8] [clients=64] [seconds=10]
+ */
+public class ReactorScalingBenchmark {
+    private static final String HOT_NAME = "bench-hot";
+
+    public static void main(String[] args) throws Exception {
+        String[] counts = (args.length > 0 ? args[0] : "0,1,2,4,8").split(",");
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        PrivateKey issuerKey = CertificateUtils.generateRSAKeyPair(2048).getPrivate();
+        System.out.printf("%-10s %12s%n", "reactors", "conn/s");
+        for (String c : counts) {
+            int reactors = Integer.parseInt(c.trim());
+            double rate = run(issuerKey, reactors, clients, seconds);
+            System.out.printf("%-10s %12.0f%n", reactors == 0 ? "single" : String.valueOf(reactors), rate);
+        }
+    }
+
+    private static double run(PrivateKey issuerKey, int reactors, int clients, int seconds) throws Exception {
+        ServerConfig config = new ServerConfig(0, 2);
+        config.reactors = reactors;
+        config.keyPoolLow = 0;
+        config.keyPoolHigh = 0;
+        KeyServer server = new KeyServer(config, issuerKey, "CN=BenchCA");
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "bench-server");
+        serverThread.start();
+
+        InetSocketAddress addr = new InetSocketAddress("127.0.0.1", server.getPort());
+        roundTrip(addr);
+
+        LongAdder completed = new LongAdder();
+        CountDownLatch done = new CountDownLatch(clients);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int i = 0; i < clients; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        roundTrip(addr);
+                        completed.increment();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Client failed: " + e.getMessage());
+                } finally {
+                    done.countDown();
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+        done.await();
+
+        server.shutdown();
+        serverThread.join();
+        return completed.sum() / (double) seconds;
+    }
+
+    private static void roundTrip(InetSocketAddress addr) throws IOException {
+        try (Socket sock = new Socket()) {
+            sock.setSoLinger(true, 0);
+            sock.connect(addr);
+            OutputStream os = sock.getOutputStream();
+            os.write(HOT_NAME.getBytes(StandardCharsets.US_ASCII));
+            os.write(0);
+            os.flush();
+            InputStream is = sock.getInputStream();
+            byte[] buf = new byte[8192];
+            while (is.read(buf) != -1) {
+                // дочитываем ответ до закрытия соединения сервером
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package ru.nsu.nocode.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.nsu.nocode.server.CertificateEngine;
+import ru.nsu.nocode.server.CertificateUtils;
+import ru.nsu.nocode.server.PemEncoder;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Этапы выдачи сертификата по отдельности: генерация пары RSA, подпись сертификата ключом CA
+ * и кодирование в PEM. Ключ CA - RSA 2048, как в generate_test_ca.sh, поэтому время подписи
+ * от keyBits почти не зависит, а время генерации растёт примерно кубически.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CertificateBenchmark {
+    @Param({"1024", "2048", "4096"})
+    public int keyBits;
+
+    private PrivateKey issuerKey;
+    private KeyPair keyPair;
+    private X509Certificate certificate;
+    private CertificateEngine engine;
+    private byte[] certificateDer;
+    private ByteBuffer out;
+
+    @Setup
+    public void setUp() throws Exception {
+        issuerKey = CertificateUtils.generateRSAKeyPair(2048).getPrivate();
+        keyPair = CertificateUtils.generateRSAKeyPair(keyBits);
+        certificate = CertificateUtils.buildCertificate("bench", keyPair.getPublic(), issuerKey, "CN=BenchCA");
+        engine = new CertificateEngine(issuerKey, "CN=BenchCA");
+        certificateDer = certificate.getEncoded();
+        out = ByteBuffer.allocateDirect(16 * 1024);
+    }
+
+    /**
+     * Время генерации зависит от того, как быстро найдутся простые числа, и сильно скачет
+     * от вызова к вызову, поэтому итерации длиннее, чем у остальных замеров.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, time = 5)
+    @Measurement(iterations = 10, time = 5)
+    public KeyPair generateRSAKeyPair() throws Exception {
+        return CertificateUtils.generateRSAKeyPair(keyBits);
+    }
+
+    @Benchmark
+    public X509Certificate buildCertificate() throws Exception {
+        return CertificateUtils.buildCertificate("bench", keyPair.getPublic(), issuerKey, "CN=BenchCA");
+    }
+
+    /** То же, что buildCertificate, через готовые куски DER и подпись потока; разница - всё, кроме подписи. */
+    @Benchmark
+    public byte[] engineCertificate() throws Exception {
+        return engine.issue("bench", keyPair.getPublic());
+    }
+
+    @Benchmark
+    public String privateKeyToPem() throws Exception {
+        return CertificateUtils.toPem(keyPair.getPrivate());
+    }
+
+    @Benchmark
+    public String certificateToPem() throws Exception {
+        return CertificateUtils.toPem(certificate);
+    }
+
+    /** PEM ключа сразу в прямой буфер, как при выдаче; разбор PKCS#8 в PKCS#1/SEC1 входит в замер. */
+    @Benchmark
+    public ByteBuffer privateKeyToBuffer() throws Exception {
+        return PemEncoder.encode(PemEncoder.privateKey(keyPair.getPrivate()), out.clear());
+    }
+
+    @Benchmark
+    public ByteBuffer certificateToBuffer() {
+        return PemEncoder.encode(PemEncoder.certificate(certificateDer), out.clear());
+    }
+}
@@ -0,0 +1,84 @@
+package ru.nsu.nocode.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.nsu.nocode.protocol.KeySpec;
+import ru.nsu.nocode.protocol.NameCache;
+import ru.nsu.nocode.protocol.Protocol;
+import ru.nsu.nocode.protocol.ProtocolException;
+import ru.nsu.nocode.protocol.Request;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Работа реактора над кадрами без сокета: разбор пачки запросов из прямого буфера, как в
+ * Reactor.readFrames, и сборка заголовков ответов в общем буфере, как в Reactor.writeResponse.
+ * Пачка из PIPELINE кадров с повторяющимися именами, часть запросов с опцией алгоритма.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FramingBenchmark {
+    private static final int PIPELINE = 32;
+    private static final int NAMES = 8;
+
+    private final NameCache names = new NameCache(4096);
+    private final ByteBuffer headerScratch = ByteBuffer.allocateDirect(Protocol.FRAME_HEADER);
+    private ByteBuffer requests;
+    private ByteBuffer legacyRequest;
+    private ByteBuffer payload;
+
+    @Setup
+    public void setUp() {
+        ByteBuffer batch = ByteBuffer.allocate(PIPELINE * 64);
+        for (int i = 0; i < PIPELINE; i++) {
+            KeySpec spec = i % 4 == 0 ? KeySpec.EC_P256 : null;
+            batch.put(Protocol.encodeRequest(new Request(i, "client-" + (i % NAMES), spec)));
+        }
+        batch.flip();
+        requests = ByteBuffer.allocateDirect(batch.remaining()).put(batch).flip();
+        legacyRequest = ByteBuffer.allocateDirect(64).put("client-0\0".getBytes(StandardCharsets.US_ASCII)).flip();
+        payload = Protocol.okPayload(ByteBuffer.allocate(1700), ByteBuffer.allocate(1100));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE)
+    public void decodeFrames(Blackhole bh) throws ProtocolException {
+        ByteBuffer buf = requests.duplicate();
+        Request request;
+        while ((request = Protocol.decodeRequest(buf, names)) != null) {
+            bh.consume(request);
+        }
+    }
+
+    /** Поиск нулевого байта и имени прямо в буфере, как Reactor.readLegacy. */
+    @Benchmark
+    public String decodeLegacy() {
+        ByteBuffer buf = legacyRequest;
+        int end = buf.limit();
+        for (int i = buf.position(); i < end; i++) {
+            if (buf.get(i) == 0) return names.get(buf, buf.position(), i - buf.position());
+        }
+        return null;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE)
+    public void frameResponses(Blackhole bh) {
+        for (int i = 0; i < PIPELINE; i++) {
+            ByteBuffer body = payload.duplicate();
+            Protocol.putFrameHeader(headerScratch.clear(), i, body.remaining()).flip();
+            bh.consume(headerScratch);
+            bh.consume(body);
+        }
+    }
+}
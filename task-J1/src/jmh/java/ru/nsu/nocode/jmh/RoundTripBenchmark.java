@@ -0,0 +1,123 @@
+package ru.nsu.nocode.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import ru.nsu.nocode.protocol.Protocol;
+import ru.nsu.nocode.protocol.Request;
+import ru.nsu.nocode.server.CertificateUtils;
+import ru.nsu.nocode.server.KeyServer;
+import ru.nsu.nocode.server.ServerConfig;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Полный запрос к KeyServer в том же процессе через loopback. Имя заранее выдано, поэтому
+ * замер покрывает сеть, разбор, кэш и запись ответа, но не генерацию - её отдельно меряет
+ * CertificateBenchmark. Число клиентов задаётся ключом -t JMH, у каждого своё соединение.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoundTripBenchmark {
+    private static final String HOT_NAME = "bench-hot";
+
+    @State(Scope.Benchmark)
+    public static class ServerState {
+        @Param({"reactor", "virtual"})
+        public String mode;
+
+        KeyServer server;
+        Thread serverThread;
+        InetSocketAddress address;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            ServerConfig config = new ServerConfig(0, 2);
+            config.applyOption("--mode=" + mode);
+            config.keyPoolLow = 0;
+            config.keyPoolHigh = 0;
+            server = new KeyServer(config, CertificateUtils.generateRSAKeyPair(2048).getPrivate(), "CN=BenchCA");
+            serverThread = new Thread(() -> {
+                try {
+                    server.start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "bench-server");
+            serverThread.start();
+            address = new InetSocketAddress("127.0.0.1", server.getPort());
+            legacyRoundTrip(address, ByteBuffer.allocateDirect(1 << 16));
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws InterruptedException {
+            server.shutdown();
+            serverThread.join();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ClientState {
+        SocketChannel channel;
+        final ByteBuffer request = ByteBuffer.allocateDirect(64);
+        final ByteBuffer in = ByteBuffer.allocateDirect(1 << 16);
+
+        @Setup(Level.Trial)
+        public void connect(ServerState server) throws IOException {
+            channel = SocketChannel.open(server.address);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.write(ByteBuffer.wrap(new byte[] { Protocol.versionByte(Protocol.VERSION_1) }));
+            request.put(Protocol.encodeRequest(new Request(1, HOT_NAME))).flip();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /** Один кадр по постоянному соединению и ожидание ответного кадра. */
+    @Benchmark
+    public int persistent(ClientState client) throws IOException {
+        ByteBuffer out = client.request.duplicate();
+        while (out.hasRemaining()) client.channel.write(out);
+        ByteBuffer in = client.in.clear();
+        while (in.position() < 4 || in.position() < 4 + in.getInt(0)) {
+            if (client.channel.read(in) == -1) throw new IOException("Server closed the connection");
+        }
+        if (in.get(Protocol.FRAME_HEADER) != Protocol.STATUS_OK) throw new IOException("Error response");
+        return in.position();
+    }
+
+    /** Старый формат: соединение на запрос, ответ читается до закрытия сервером. */
+    @Benchmark
+    public int legacy(ServerState server, ClientState client) throws IOException {
+        return legacyRoundTrip(server.address, client.in);
+    }
+
+    private static int legacyRoundTrip(InetSocketAddress address, ByteBuffer in) throws IOException {
+        try (SocketChannel ch = SocketChannel.open(address)) {
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ch.write(ByteBuffer.wrap((HOT_NAME + "\0").getBytes(StandardCharsets.US_ASCII)));
+            in.clear();
+            while (ch.read(in) != -1) {
+                if (!in.hasRemaining()) throw new IOException("Response larger than buffer");
+            }
+            if (in.get(0) != Protocol.STATUS_OK) throw new IOException("Error response");
+            return in.position();
+        }
+    }
+}
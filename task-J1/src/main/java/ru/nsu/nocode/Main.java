@@ -2,7 +2,9 @@ package ru.nsu.nocode;
 
 import ru.nsu.nocode.server.KeyServer;
 import ru.nsu.nocode.server.CertificateUtils;
+import ru.nsu.nocode.server.ServerConfig;
 import ru.nsu.nocode.client.KeyClient;
+import ru.nsu.nocode.client.LoadGenerator;
 
 import java.nio.file.Path;
 import java.security.PrivateKey;
@@ -12,8 +14,9 @@ public class Main {
         if (args.length == 0) {
             System.err.println("""
                     Usage:
-                      java ru.nsu.nocode.Main server <port> <threads> <issuer.pem> <issuerDN>
-                      java ru.nsu.nocode.Main client <host> <port> <name> [--delay N] [--preexit]
+                      java ru.nsu.nocode.Main server <port> <threads> <issuer.pem> <issuerDN> [--name=value ...]
+                      java ru.nsu.nocode.Main client <host|unix:PATH> <port> <name> [--delay N] [--preexit]
+                      java ru.nsu.nocode.Main loadgen <host|unix:PATH> <port> [--connections=N] [--rate=R] [--name=value ...]
                     """);
             System.exit(1);
         }
@@ -22,6 +25,7 @@ public class Main {
             switch (args[0].toLowerCase()) {
                 case "server" -> runServer(args);
                 case "client" -> runClient(args);
+                case "loadgen" -> runLoadgen(args);
                 default -> {
                     System.err.println("Unknown mode: " + args[0]);
                     System.exit(2);
@@ -34,15 +38,19 @@ public class Main {
 
     private static void runServer(String[] args) throws Exception {
         if (args.length < 5) {
-            System.err.println("Usage: server <port> <threads> <issuer.pem> <issuerDN>");
+            System.err.println("Usage: server <port> <threads> <issuer.pem> <issuerDN> [--name=value ...]");
             return;
         }
         int port = Integer.parseInt(args[1]);
         int threads = Integer.parseInt(args[2]);
         Path pem = Path.of(args[3]);
         String dn = args[4];
+        ServerConfig config = new ServerConfig(port, threads);
+        for (int i = 5; i < args.length; i++) {
+            config.applyOption(args[i]);
+        }
         PrivateKey issuerKey = CertificateUtils.loadPrivateKeyPem(pem);
-        KeyServer server = new KeyServer(port, threads, issuerKey, dn);
+        KeyServer server = new KeyServer(config, issuerKey, dn);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("Stopping server...");
@@ -62,4 +70,10 @@ public class Main {
         System.arraycopy(args, 1, clientArgs, 0, clientArgs.length);
         KeyClient.main(clientArgs);
     }
+
+    private static void runLoadgen(String[] args) throws Exception {
+        String[] loadArgs = new String[args.length - 1];
+        System.arraycopy(args, 1, loadArgs, 0, loadArgs.length);
+        LoadGenerator.main(loadArgs);
+    }
 }
@@ -0,0 +1,403 @@
+package ru.nsu.nocode.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.nsu.nocode.protocol.KeySpec;
+import ru.nsu.nocode.protocol.Protocol;
+import ru.nsu.nocode.protocol.ProtocolException;
+import ru.nsu.nocode.protocol.Request;
+import ru.nsu.nocode.protocol.ResponseFormat;
+
+/**
+ * Неблокирующий клиент для встраивания в сервисы: request(name) сразу возвращает future, а весь
+ * ввод-вывод идёт в одном потоке с селектором по пулу постоянных соединений версии 1 к одному
+ * или нескольким серверам. Запросы раскладываются по соединениям по кругу и идут конвейером,
+ * ответы сопоставляются по идентификатору и разбираются прямо из буфера чтения, поэтому один
+ * экземпляр держит тысячи выдач одновременно.
+ *
+ * - больше maxInFlight незавершённых запросов - новый сразу завершается RejectedExecutionException;
+ * - нет ответа за timeoutMs от вызова request - TimeoutException;
+ * - RETRY_LATER сервера - ServerBusyException, THROTTLED - ClientThrottledException (тоже ServerBusyException),
+ *   ошибка сервера или обрыв соединения - IOException.
+ *
+ * Соединения открываются при первом запросе и переоткрываются после обрыва. Запросы с соединения,
+ * которое не подключилось, уходят на другие серверы, а сам сервер retryDelayMs не используется.
+ * Future завершаются в потоке ввода-вывода: продолжения без Async не должны в нём блокироваться.
+ */
+public final class AsyncKeyClient implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncKeyClient.class);
+    private static final int READ_BUFFER = 64 * 1024;
+    private static final int MAX_RESPONSE_FRAME = 16 * 1024 * 1024;
+    private static final long IDLE_SELECT_MS = 100;
+
+    private final AsyncKeyClientConfig config;
+    private final long timeoutNanos;
+    private final Selector selector;
+    private final Thread io;
+    // Соединения разных серверов чередуются, чтобы и короткая пачка запросов делилась между серверами
+    private final Connection[] connections;
+    private final ConcurrentLinkedQueue<Pending> submissions = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private volatile boolean closed;
+    // Только поток ввода-вывода
+    private int nextConnection;
+
+    public AsyncKeyClient(AsyncKeyClientConfig config) throws IOException {
+        config.validate();
+        this.config = config;
+        this.timeoutNanos = config.timeoutMs * 1_000_000L;
+        List<Server> servers = new ArrayList<>();
+        for (SocketAddress address : config.servers) servers.add(new Server(address));
+        connections = new Connection[servers.size() * config.connectionsPerServer];
+        for (int i = 0; i < config.connectionsPerServer; i++) {
+            for (int s = 0; s < servers.size(); s++) {
+                connections[i * servers.size() + s] = new Connection(servers.get(s));
+            }
+        }
+        selector = Selector.open();
+        io = new Thread(this::loop, "KeyClient-io");
+        io.setDaemon(true);
+        io.start();
+    }
+
+    /** Пара для имени с алгоритмом и форматом из конфигурации. */
+    public CompletableFuture<IssuedKey> request(String name) {
+        return request(name, config.keySpec, config.format);
+    }
+
+    public CompletableFuture<IssuedKey> request(String name, KeySpec keySpec, ResponseFormat format) {
+        if (closed) return CompletableFuture.failedFuture(new IOException("Client closed"));
+        int id = nextId.getAndIncrement();
+        ByteBuffer frame;
+        try {
+            frame = Protocol.encodeRequest(new Request(id, name, keySpec, format, false, config.tenant));
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (inFlight.incrementAndGet() > config.maxInFlight) {
+            inFlight.decrementAndGet();
+            return CompletableFuture.failedFuture(
+                new RejectedExecutionException("Too many requests in flight: " + config.maxInFlight));
+        }
+        Pending p = new Pending(id, name, keySpec, format, frame, System.nanoTime() + timeoutNanos);
+        submissions.add(p);
+        if (closed) {
+            // Поток ввода-вывода мог уже разобрать очередь напоследок
+            failSubmissions(new IOException("Client closed"));
+        } else if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        return p.future;
+    }
+
+    /** Запросы, на которые ещё не пришёл ответ. */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /** Завершает ожидающие запросы IOException и закрывает соединения. */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        selector.wakeup();
+        if (Thread.currentThread() == io) return;
+        try {
+            io.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loop() {
+        try {
+            while (!closed) {
+                long now = System.nanoTime();
+                drainSubmissions(now);
+                long waitMs = expire(now);
+                if (submissions.isEmpty()) {
+                    selector.select(waitMs);
+                } else {
+                    selector.selectNow();
+                }
+                // Сброс до разбора очереди: запрос, пришедший после него, разбудит следующий select
+                wakeupPending.set(false);
+                now = System.nanoTime();
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid()) ((Connection) key.attachment()).handle(key, now);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            logger.error("Key client I/O loop failed: {}", e.getMessage(), e);
+        } finally {
+            closed = true;
+            IOException ex = new IOException("Client closed");
+            for (Connection c : connections) c.close(ex);
+            failSubmissions(ex);
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void drainSubmissions(long now) {
+        for (Pending p; (p = submissions.poll()) != null; ) {
+            Connection c = pick(now);
+            if (c == null) {
+                finish(p, null, new IOException("No server available for " + p.name));
+            } else {
+                c.enqueue(p);
+            }
+        }
+    }
+
+    private void failSubmissions(IOException ex) {
+        for (Pending p; (p = submissions.poll()) != null; ) finish(p, null, ex);
+    }
+
+    /** Следующее по кругу соединение, чей сервер не помечен недоступным; закрытое подключается заново. */
+    private Connection pick(long now) {
+        for (int i = 0; i < connections.length; i++) {
+            Connection c = connections[nextConnection++ % connections.length];
+            if (c.channel != null) return c;
+            if (now - c.server.downUntil < 0) continue;
+            if (c.connect(now)) return c;
+        }
+        return null;
+    }
+
+    /** Снимает просроченные запросы и подключения; возвращает, сколько ждать до следующего срока. */
+    private long expire(long now) {
+        long next = now + IDLE_SELECT_MS * 1_000_000L;
+        for (Connection c : connections) {
+            if (c.channel != null && !c.connected) {
+                if (now - c.connectDeadline >= 0) {
+                    c.connectFailed(new IOException("connect timed out after " + config.connectTimeoutMs + " ms"), now);
+                    continue;
+                }
+                next = Math.min(next, c.connectDeadline);
+            }
+            // Порядок вставки почти совпадает с порядком сроков: все запросы живут одинаковые timeoutMs
+            for (Iterator<Pending> it = c.pending.values().iterator(); it.hasNext();) {
+                Pending p = it.next();
+                if (p.deadline - now > 0) {
+                    next = Math.min(next, p.deadline);
+                    break;
+                }
+                it.remove();
+                finish(p, null, new TimeoutException("No response for " + p.name + " in " + config.timeoutMs + " ms"));
+            }
+        }
+        return Math.max(1, (next - now + 999_999) / 1_000_000);
+    }
+
+    private void finish(Pending p, IssuedKey key, Throwable ex) {
+        // Место освобождается до продолжений: они могут сразу отправить следующий запрос
+        inFlight.decrementAndGet();
+        if (ex != null) {
+            p.future.completeExceptionally(ex);
+        } else {
+            p.future.complete(key);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buf, int atLeast) {
+        ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(atLeast, buf.capacity() * 2));
+        return bigger.put(buf.flip());
+    }
+
+    private record Pending(int id, String name, KeySpec keySpec, ResponseFormat format, ByteBuffer frame,
+                           long deadline, CompletableFuture<IssuedKey> future) {
+        Pending(int id, String name, KeySpec keySpec, ResponseFormat format, ByteBuffer frame, long deadline) {
+            this(id, name, keySpec, format, frame, deadline, new CompletableFuture<>());
+        }
+    }
+
+    private static final class Server {
+        final SocketAddress address;
+        // Только поток ввода-вывода
+        long downUntil;
+
+        Server(SocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    /** Одно соединение пула; все поля трогает только поток ввода-вывода. */
+    private final class Connection {
+        final Server server;
+        final LinkedHashMap<Integer, Pending> pending = new LinkedHashMap<>();
+        SocketChannel channel;
+        SelectionKey key;
+        boolean connected;
+        long connectDeadline;
+        ByteBuffer out = ByteBuffer.allocateDirect(4096);
+        ByteBuffer in = ByteBuffer.allocateDirect(READ_BUFFER);
+
+        Connection(Server server) {
+            this.server = server;
+        }
+
+        boolean connect(long now) {
+            try {
+                channel = ClientSockets.open(server.address);
+                channel.configureBlocking(false);
+                out.clear().put(Protocol.versionByte(Protocol.VERSION_1));
+                in.clear();
+                connected = channel.connect(server.address);
+                connectDeadline = now + config.connectTimeoutMs * 1_000_000L;
+                key = channel.register(selector, connected ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+                return true;
+            } catch (IOException e) {
+                connectFailed(e, now);
+                return false;
+            }
+        }
+
+        void enqueue(Pending p) {
+            pending.put(p.id, p);
+            ByteBuffer frame = p.frame.duplicate();
+            if (out.remaining() < frame.remaining()) out = grow(out, out.position() + frame.remaining());
+            out.put(frame);
+            if (connected) flush();
+        }
+
+        void handle(SelectionKey key, long now) {
+            if (key.isConnectable()) {
+                try {
+                    channel.finishConnect();
+                } catch (IOException e) {
+                    connectFailed(e, now);
+                    return;
+                }
+                connected = true;
+                flush();
+                return;
+            }
+            if (key.isWritable()) flush();
+            if (key.isValid() && key.isReadable()) read();
+        }
+
+        void flush() {
+            try {
+                channel.write(out.flip());
+                out.compact();
+                key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            } catch (IOException e) {
+                close(new IOException("Connection to " + server.address + " lost: " + e.getMessage(), e));
+            }
+        }
+
+        void read() {
+            try {
+                if (channel.read(in) == -1) {
+                    close(new IOException("Connection to " + server.address + " closed by server"));
+                    return;
+                }
+                ByteBuffer buf = in.flip();
+                while (buf.remaining() >= 4) {
+                    int len = buf.getInt(buf.position());
+                    if (len < 4 + 1 || len > MAX_RESPONSE_FRAME) throw new ProtocolException("Bad response frame length: " + len);
+                    if (buf.remaining() < 4 + len) {
+                        if (4 + len > buf.capacity()) in = buf = grow(buf.compact(), 4 + len).flip();
+                        break;
+                    }
+                    int end = buf.position() + 4 + len;
+                    int id = buf.getInt(buf.position() + 4);
+                    buf.position(buf.position() + Protocol.FRAME_HEADER);
+                    Pending p = pending.remove(id);
+                    // Ответ на запрос, снятый по таймауту, просто пропускается
+                    if (p != null) complete(p, buf, end);
+                    buf.position(end);
+                }
+                buf.compact();
+            } catch (IOException e) {
+                close(new IOException("Connection to " + server.address + " lost: " + e.getMessage(), e));
+            }
+        }
+
+        /** Тело ответа лежит в buf от позиции до end: [status][...] как в старом формате. */
+        private void complete(Pending p, ByteBuffer buf, int end) throws ProtocolException {
+            byte status = buf.get();
+            if (status == Protocol.STATUS_OK) {
+                byte[] priv = bytes(buf, end);
+                byte[] cert = bytes(buf, end);
+                finish(p, new IssuedKey(p.name, p.keySpec, p.format, priv, cert), null);
+            } else if (status == Protocol.STATUS_RETRY_LATER) {
+                if (end - buf.position() < 4) throw new ProtocolException("Truncated retry-after");
+                finish(p, null, new ServerBusyException(p.name, buf.getInt()));
+            } else if (status == Protocol.STATUS_THROTTLED) {
+                if (end - buf.position() < 4) throw new ProtocolException("Truncated retry-after");
+                finish(p, null, new ClientThrottledException(p.name, buf.getInt()));
+            } else if (status == Protocol.STATUS_ERROR) {
+                String message = new String(bytes(buf, end), StandardCharsets.UTF_8);
+                finish(p, null, new IOException("Server error for " + p.name + ": " + message));
+            } else {
+                finish(p, null, new IOException("Unknown status " + status + " for " + p.name));
+            }
+        }
+
+        private static byte[] bytes(ByteBuffer buf, int end) throws ProtocolException {
+            if (end - buf.position() < 4) throw new ProtocolException("Truncated response");
+            int len = buf.getInt();
+            if (len < 0 || len > end - buf.position()) throw new ProtocolException("Field length " + len + " exceeds frame");
+            byte[] bytes = new byte[len];
+            buf.get(bytes);
+            return bytes;
+        }
+
+        /** Запросы ещё не ушли в сеть: отправляем их через другие соединения, сервер на время пропускаем. */
+        void connectFailed(IOException e, long now) {
+            logger.warn("Could not connect to key server {}: {}", server.address, e.getMessage());
+            server.downUntil = now + config.retryDelayMs * 1_000_000L;
+            List<Pending> unsent = new ArrayList<>(pending.values());
+            pending.clear();
+            close(e);
+            submissions.addAll(unsent);
+        }
+
+        void close(IOException cause) {
+            if (key != null) key.cancel();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            channel = null;
+            key = null;
+            connected = false;
+            out.clear();
+            in.clear();
+            if (pending.isEmpty()) return;
+            if (!closed) logger.warn("{}", cause.getMessage());
+            List<Pending> lost = new ArrayList<>(pending.values());
+            pending.clear();
+            for (Pending p : lost) finish(p, null, cause);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package ru.nsu.nocode.client;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import ru.nsu.nocode.protocol.KeySpec;
+import ru.nsu.nocode.protocol.Protocol;
+import ru.nsu.nocode.protocol.ResponseFormat;
+
+public class AsyncKeyClientConfig {
+    public final List<SocketAddress> servers = new ArrayList<>();
+    // Постоянных соединений на каждый сервер; запросы идут по ним конвейером
+    public int connectionsPerServer = 2;
+    // Запросы сверх лимита сразу завершаются RejectedExecutionException
+    public int maxInFlight = 10_000;
+    public long timeoutMs = 30_000;
+    public long connectTimeoutMs = 1_000;
+    // Сколько не подключаться к серверу после неудачного подключения
+    public long retryDelayMs = 1_000;
+    // null - алгоритм по умолчанию сервера
+    public KeySpec keySpec = null;
+    public ResponseFormat format = ResponseFormat.PEM;
+    // Тег арендатора в каждом запросе; сервер с --fair-by=tenant делит генерацию и норму по нему
+    public String tenant = null;
+
+    /** host вида unix:/путь - сокет Unix, port тогда не используется. */
+    public AsyncKeyClientConfig(String host, int port) {
+        servers.add(ClientSockets.address(host, port));
+    }
+
+    /** servers - список host:port или unix:/путь через запятую. */
+    public AsyncKeyClientConfig(String servers) {
+        for (String s : servers.split(",")) {
+            if (s.isBlank()) continue;
+            this.servers.add(ClientSockets.parse(s));
+        }
+    }
+
+    public void validate() {
+        if (servers.isEmpty()) throw new IllegalArgumentException("At least one server is required");
+        if (connectionsPerServer < 1) throw new IllegalArgumentException("connectionsPerServer must be >= 1");
+        if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be >= 1");
+        if (timeoutMs < 1 || connectTimeoutMs < 1 || retryDelayMs < 0) {
+            throw new IllegalArgumentException("Require timeoutMs >= 1, connectTimeoutMs >= 1, retryDelayMs >= 0");
+        }
+        if (format == null) throw new IllegalArgumentException("format is required");
+        if (tenant != null && (tenant.isEmpty() || tenant.length() > Protocol.MAX_TENANT_LENGTH)) {
+            throw new IllegalArgumentException("tenant must be 1.." + Protocol.MAX_TENANT_LENGTH + " characters");
+        }
+    }
+}
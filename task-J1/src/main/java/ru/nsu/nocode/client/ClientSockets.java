@@ -0,0 +1,43 @@
+package ru.nsu.nocode.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Адрес сервера для клиентов: host и port или сокет Unix в виде unix:/путь. Канал сокета Unix
+ * открывается своим семейством протоколов, и TCP_NODELAY у него нет.
+ */
+final class ClientSockets {
+    static final String UNIX_PREFIX = "unix:";
+
+    private ClientSockets() {
+    }
+
+    /** host с префиксом unix: - путь к сокету, port тогда не используется. */
+    static SocketAddress address(String host, int port) {
+        if (host.startsWith(UNIX_PREFIX)) return UnixDomainSocketAddress.of(host.substring(UNIX_PREFIX.length()));
+        return new InetSocketAddress(host, port);
+    }
+
+    /** Разбирает host:port или unix:/путь. */
+    static SocketAddress parse(String text) {
+        String s = text.trim();
+        if (s.startsWith(UNIX_PREFIX)) return address(s, 0);
+        int colon = s.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Expected host:port or unix:PATH, got: " + s);
+        return new InetSocketAddress(s.substring(0, colon).trim(), Integer.parseInt(s.substring(colon + 1).trim()));
+    }
+
+    /** Открытый, ещё не подключённый канал под семейство адреса. */
+    static SocketChannel open(SocketAddress address) throws IOException {
+        if (address instanceof UnixDomainSocketAddress) return SocketChannel.open(StandardProtocolFamily.UNIX);
+        SocketChannel channel = SocketChannel.open();
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return channel;
+    }
+}
@@ -0,0 +1,11 @@
+package ru.nsu.nocode.client;
+
+/**
+ * Сервер ответил THROTTLED: этот клиент (адрес или тег арендатора) исчерпал норму новых генераций.
+ * Остальные клиенты при этом обслуживаются, повторять стоит не раньше retryAfterMs.
+ */
+public class ClientThrottledException extends ServerBusyException {
+    public ClientThrottledException(String name, int retryAfterMs) {
+        super(retryAfterMs, "Rate limit reached for " + name + ", retry after " + retryAfterMs + " ms");
+    }
+}
@@ -0,0 +1,11 @@
+package ru.nsu.nocode.client;
+
+import ru.nsu.nocode.protocol.KeySpec;
+import ru.nsu.nocode.protocol.ResponseFormat;
+
+/**
+ * Выданная сервером пара: закрытый ключ и сертификат в запрошенном формате (PEM-текст или DER).
+ * keySpec == null - алгоритм выбрал сервер.
+ */
+public record IssuedKey(String name, KeySpec keySpec, ResponseFormat format, byte[] privateKey, byte[] certificate) {
+}
@@ -2,35 +2,71 @@ package ru.nsu.nocode.client;
 
 import java.io.*;
 import java.lang.reflect.Array;
-import java.net.Socket;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import ru.nsu.nocode.protocol.KeySpec;
+import ru.nsu.nocode.protocol.Protocol;
+import ru.nsu.nocode.protocol.Request;
+import ru.nsu.nocode.protocol.ResponseFormat;
 
 public class KeyClient {
     public static void main(String[] args) throws Exception {
         if (args.length < 3) {
-            System.err.println("Usage: KeyClient <host> <port> <name> [--delay N] [--preexit]");
+            System.err.println("Usage: KeyClient <host|unix:PATH> <port> <name>[,<name>...] [--delay N] [--preexit] [--persistent] [--alg rsa-2048|ec-p256|ed25519] [--der] [--tenant TAG]");
             return;
         }
         String host = args[0];
         int port = Integer.parseInt(args[1]);
         String name = args[2];
-        int delay = 0; boolean exitEarly = false;
+        int delay = 0; boolean exitEarly = false; boolean persistent = false;
+        KeySpec keySpec = null;
+        ResponseFormat format = ResponseFormat.PEM;
+        String tenant = null;
 
         for (int i = 3; i < args.length; i++) {
             if ("--delay".equals(args[i]) && i + 1 < args.length)
                 delay = Integer.parseInt(args[++i]);
             else if ("--preexit".equals(args[i]))
                 exitEarly = true;
+            else if ("--persistent".equals(args[i]))
+                persistent = true;
+            else if ("--alg".equals(args[i]) && i + 1 < args.length)
+                keySpec = KeySpec.parse(args[++i]);
+            else if ("--der".equals(args[i]))
+                format = ResponseFormat.DER;
+            else if ("--tenant".equals(args[i]) && i + 1 < args.length)
+                tenant = args[++i];
+        }
+
+        // Алгоритм, формат и арендатор передаются опциями кадра, поэтому --alg, --der и --tenant всегда идут
+        // через версионированный протокол
+        if (persistent || keySpec != null || format != ResponseFormat.PEM || tenant != null) {
+            // Задержка и выход до чтения ответа проверяют обработку медленных и пропавших клиентов старым
+            // форматом; AsyncKeyClient их не умеет, а молча их пропускать значило бы проверять не то
+            if (delay > 0 || exitEarly) {
+                System.err.println("--delay and --preexit work only with the legacy protocol; drop --persistent, --alg, --der and --tenant");
+                return;
+            }
+            requestPersistent(host, port, name.split(","), keySpec, format, tenant);
+            return;
         }
 
-        try (Socket sock = new Socket(host, port)) {
-            OutputStream os = sock.getOutputStream();
-            InputStream is = sock.getInputStream();
+        // host вида unix:/путь - сокет Unix сервера (--unix-socket), port тогда не используется
+        SocketAddress address = ClientSockets.address(host, port);
+        try (SocketChannel sock = ClientSockets.open(address)) {
+            sock.connect(address);
+            OutputStream os = Channels.newOutputStream(sock);
+            InputStream is = Channels.newInputStream(sock);
 
             byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
             os.write(nameBytes);
@@ -76,9 +112,47 @@ public class KeyClient {
                 try (FileOutputStream f = new FileOutputStream(name + ".key")) { f.write(priv); }
                 try (FileOutputStream f = new FileOutputStream(name + ".crt")) { f.write(cert); }
                 System.out.println("Saved " + name + ".key and " + name + ".crt");
+            } else if (status == Protocol.STATUS_RETRY_LATER || status == Protocol.STATUS_THROTTLED) {
+                byte[] retry = is.readNBytes(4);
+                if (retry.length < 4) throw new IOException("Incomplete retry-after");
+                String reason = status == Protocol.STATUS_THROTTLED ? "Rate limit reached" : "Server busy";
+                System.err.println(reason + ", retry after " + ByteBuffer.wrap(retry).getInt() + " ms");
             } else {
                 System.err.println("Unknown status: " + status);
             }
         }
     }
+
+    private static void requestPersistent(String host, int port, String[] names, KeySpec keySpec,
+                                          ResponseFormat format, String tenant) throws IOException {
+        AsyncKeyClientConfig config = new AsyncKeyClientConfig(host, port);
+        config.connectionsPerServer = 1;
+        config.keySpec = keySpec;
+        config.format = format;
+        config.tenant = tenant;
+        try (AsyncKeyClient client = new AsyncKeyClient(config)) {
+            List<CompletableFuture<IssuedKey>> results = new ArrayList<>();
+            for (String name : names) results.add(client.request(name));
+            System.out.println("Sent " + names.length + " request(s) over one connection");
+
+            String suffix = format == ResponseFormat.DER ? ".der" : "";
+            for (int id = 0; id < names.length; id++) {
+                String name = names[id];
+                try {
+                    IssuedKey key = results.get(id).join();
+                    try (FileOutputStream f = new FileOutputStream(name + ".key" + suffix)) { f.write(key.privateKey()); }
+                    try (FileOutputStream f = new FileOutputStream(name + ".crt" + suffix)) { f.write(key.certificate()); }
+                    System.out.println("#" + id + " saved " + name + ".key" + suffix + " and " + name + ".crt" + suffix);
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof ClientThrottledException throttled) {
+                        System.err.println("#" + id + " rate limit reached for " + name + ", retry after " + throttled.retryAfterMs() + " ms");
+                    } else if (e.getCause() instanceof ServerBusyException busy) {
+                        System.err.println("#" + id + " server busy for " + name + ", retry after " + busy.retryAfterMs() + " ms");
+                    } else {
+                        System.err.println("#" + id + " " + e.getCause().getMessage());
+                    }
+                }
+            }
+        }
+    }
 }
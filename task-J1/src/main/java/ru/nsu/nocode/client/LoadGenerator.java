@@ -0,0 +1,469 @@
+package ru.nsu.nocode.client;
+
+import ru.nsu.nocode.metrics.LatencyHistogram;
+import ru.nsu.nocode.protocol.KeySpec;
+import ru.nsu.nocode.protocol.Protocol;
+import ru.nsu.nocode.protocol.Request;
+import ru.nsu.nocode.protocol.ResponseFormat;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Генератор нагрузки: тысячи неблокирующих соединений из одного процесса, по селектору на поток.
+ *
+ * Open loop (--rate): запросы назначаются по расписанию независимо от ответов, а задержка считается
+ * от назначенного момента, а не от фактической отправки. Если отстаёт сервер или сам генератор
+ * (нет свободного соединения, поток не успел проснуться), ожидание попадает в задержку, поэтому
+ * хвосты не прячутся за coordinated omission. Запросы, не получившие ответа до конца прогона,
+ * учитываются с их возрастом на этот момент. Closed loop меряет время обслуживания: под перегрузкой
+ * клиенты просто реже спрашивают, и хвосты выглядят лучше, чем есть.
+ *
+ * Usage: loadgen <host|unix:PATH> <port> [--connections=N] [--rate=R] [--threads=N] [--duration-s=N] [--warmup-s=N]
+ *        [--drain-s=N] [--hot-ratio=F] [--hot-names=N] [--protocol=framed|legacy] [--alg=SPEC]
+ *        [--format=pem|der] [--tenant=TAG]
+ */
+public class LoadGenerator {
+    private static final int READ_BUFFER = 8192;
+
+    private final LoadGeneratorConfig config;
+    private final SocketAddress address;
+    private final KeySpec keySpec;
+    private final ResponseFormat format;
+    private final String[] hotNames;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong uniqueNames = new AtomicLong();
+
+    private final LatencyHistogram latency = new LatencyHistogram("response");
+    private final LatencyHistogram sendLag = new LatencyHistogram("send_lag");
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder unfinished = new LongAdder();
+    private final LongAdder lostConnections = new LongAdder();
+
+    // Выставляются до start.countDown(), поэтому видны рабочим потокам
+    private long measureStart;
+    private long measureEnd;
+    private long drainEnd;
+    private final CountDownLatch start = new CountDownLatch(1);
+
+    public LoadGenerator(LoadGeneratorConfig config) {
+        this.config = config;
+        this.address = ClientSockets.address(config.host, config.port);
+        this.keySpec = config.keySpec();
+        this.format = config.responseFormat();
+        this.hotNames = new String[config.hotNames];
+        for (int i = 0; i < hotNames.length; i++) hotNames[i] = "hot-" + i;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: loadgen <host|unix:PATH> <port> [--connections=N] [--rate=R] [--threads=N] [--duration-s=N]"
+                + " [--warmup-s=N] [--drain-s=N] [--hot-ratio=F] [--hot-names=N] [--protocol=framed|legacy] [--alg=SPEC] [--format=pem|der] [--tenant=TAG]");
+            return;
+        }
+        LoadGeneratorConfig config = new LoadGeneratorConfig(args[0], Integer.parseInt(args[1]));
+        for (int i = 2; i < args.length; i++) {
+            config.applyOption(args[i]);
+        }
+        config.validate();
+        new LoadGenerator(config).run();
+    }
+
+    public void run() throws Exception {
+        List<Worker> workers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch ready = new CountDownLatch(config.threads);
+        for (int i = 0; i < config.threads; i++) {
+            int share = config.connections / config.threads + (i < config.connections % config.threads ? 1 : 0);
+            Worker w = new Worker(i, share, ready);
+            workers.add(w);
+            Thread t = new Thread(w, "loadgen-" + i);
+            threads.add(t);
+            t.start();
+        }
+        ready.await();
+        for (Worker w : workers) {
+            if (w.setupError != null) {
+                start.countDown();
+                for (Thread t : threads) t.join();
+                throw new IOException("Could not open connections (check ulimit -n): " + w.setupError.getMessage(), w.setupError);
+            }
+        }
+
+        long now = System.nanoTime();
+        measureStart = now + config.warmupSeconds * 1_000_000_000L;
+        measureEnd = measureStart + config.durationSeconds * 1_000_000_000L;
+        drainEnd = measureEnd + config.drainSeconds * 1_000_000_000L;
+        System.out.printf("loadgen: %s, %d connections, %s, %d threads, %.0f%% of requests to %d hot names%n",
+            config.isOpenLoop() ? String.format("open loop %.0f req/s", config.rate) : "closed loop",
+            config.connections, config.protocol, config.threads, config.hotRatio * 100, config.hotNames);
+        System.out.printf("warmup %d s, measuring %d s%n", config.warmupSeconds, config.durationSeconds);
+        start.countDown();
+        for (Thread t : threads) t.join();
+        report();
+    }
+
+    private void report() {
+        double seconds = config.durationSeconds;
+        System.out.printf("completed:   %d (%.1f req/s), rejected %d, throttled %d, errors %d, unfinished %d, lost connections %d%n",
+            completed.sum(), completed.sum() / seconds, rejected.sum(), throttled.sum(), errors.sum(), unfinished.sum(),
+            lostConnections.sum());
+        System.out.printf("latency ms:  p50 %s  p90 %s  p99 %s  p99.9 %s  max %s  (%s)%n",
+            ms(latency, 0.5), ms(latency, 0.9), ms(latency, 0.99), ms(latency, 0.999), ms(latency, 1.0),
+            config.isOpenLoop() ? "from scheduled send time" : "service time, closed loop");
+        if (config.isOpenLoop()) {
+            // Большое отставание значит, что упёрся сам генератор: добавьте --threads или снизьте --rate
+            System.out.printf("send lag ms: p50 %s  p99 %s  max %s%n",
+                ms(sendLag, 0.5), ms(sendLag, 0.99), ms(sendLag, 1.0));
+        }
+    }
+
+    private static String ms(LatencyHistogram h, double fraction) {
+        return String.format("%.3f", h.valueAtPercentile(fraction) / 1e6);
+    }
+
+    private final class Worker implements Runnable {
+        final int index;
+        final int connections;
+        final CountDownLatch ready;
+        final SplittableRandom random;
+        final ByteBuffer scratch = ByteBuffer.allocateDirect(READ_BUFFER);
+        Selector selector;
+        volatile IOException setupError;
+
+        final List<FramedConnection> framed = new ArrayList<>();
+        int nextConnection;
+        int activeLegacy;
+        final ArrayDeque<Long> arrivals = new ArrayDeque<>();
+
+        // Запросы, назначенные, но ещё без ответа, включая ждущие в arrivals
+        int inFlight;
+        boolean issuing = true;
+        long nextDue;
+        long interval;
+
+        Worker(int index, int connections, CountDownLatch ready) {
+            this.index = index;
+            this.connections = connections;
+            this.ready = ready;
+            this.random = new SplittableRandom(System.nanoTime() + index);
+        }
+
+        @Override
+        public void run() {
+            try {
+                try {
+                    selector = Selector.open();
+                    if (!config.isLegacy()) connectAll();
+                } catch (IOException e) {
+                    setupError = e;
+                }
+                ready.countDown();
+                start.await();
+                if (setupError == null) loop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                System.err.println("loadgen-" + index + " failed: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector != null ? selector.keys() : List.<SelectionKey>of()) {
+                    try { key.channel().close(); } catch (IOException ignored) {}
+                }
+                try { if (selector != null) selector.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        private void connectAll() throws IOException {
+            for (int i = 0; i < connections; i++) {
+                SocketChannel ch = ClientSockets.open(address);
+                ch.connect(address);
+                ch.configureBlocking(false);
+                FramedConnection c = new FramedConnection(ch);
+                c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                c.out.put(Protocol.versionByte(Protocol.VERSION_1));
+                framed.add(c);
+            }
+        }
+
+        private void loop() throws IOException {
+            long now = System.nanoTime();
+            if (config.isOpenLoop()) {
+                interval = Math.max(1, (long) (config.threads * 1e9 / config.rate));
+                // Потоки сдвинуты по фазе, чтобы общий поток запросов был равномерным
+                nextDue = now + interval * index / config.threads;
+            } else if (config.isLegacy()) {
+                for (int i = 0; i < connections; i++) issue(now, now);
+            } else {
+                for (FramedConnection c : new ArrayList<>(framed)) sendFramed(c, now, now);
+            }
+
+            while (true) {
+                now = System.nanoTime();
+                if (issuing && now >= measureEnd) issuing = false;
+                if (issuing && config.isOpenLoop()) {
+                    while (nextDue <= now) {
+                        issue(nextDue, now);
+                        nextDue += interval;
+                    }
+                }
+                if ((!issuing && inFlight == 0) || now >= drainEnd) break;
+
+                long wait = !issuing ? drainEnd - now : config.isOpenLoop() ? nextDue - now : measureEnd - now;
+                if (wait >= 1_000_000) {
+                    selector.select(wait / 1_000_000);
+                } else {
+                    // select(0) ждёт бесконечно, а миллисекунда сна сдвинула бы расписание
+                    selector.selectNow();
+                }
+                now = System.nanoTime();
+                var it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.attachment() instanceof FramedConnection c) {
+                        handleFramed(c, key, now);
+                    } else {
+                        handleLegacy((LegacyConnection) key.attachment(), key, now);
+                    }
+                }
+            }
+            countUnfinished(System.nanoTime());
+        }
+
+        /** Назначает запрос на момент intended; в open loop intended может быть в прошлом. */
+        private void issue(long intended, long now) {
+            if (config.isLegacy()) {
+                inFlight++;
+                if (activeLegacy < connections) {
+                    startLegacy(intended, now);
+                } else {
+                    arrivals.add(intended);
+                }
+                return;
+            }
+            if (framed.isEmpty()) {
+                account(intended, Protocol.STATUS_ERROR, now);
+                return;
+            }
+            FramedConnection c = framed.get(nextConnection++ % framed.size());
+            sendFramed(c, intended, now);
+        }
+
+        private String nextName() {
+            if (random.nextDouble() < config.hotRatio) return hotNames[random.nextInt(hotNames.length)];
+            return "u-" + runId + "-" + uniqueNames.incrementAndGet();
+        }
+
+        /** Задержка только у успешных ответов; отказы RETRY_LATER и THROTTLED считаются отдельно. */
+        private void account(long intended, int status, long now) {
+            if (intended < measureStart) return;
+            if (status == Protocol.STATUS_RETRY_LATER) {
+                rejected.increment();
+                return;
+            }
+            if (status == Protocol.STATUS_THROTTLED) {
+                throttled.increment();
+                return;
+            }
+            if (status != Protocol.STATUS_OK) {
+                errors.increment();
+                return;
+            }
+            latency.record(now - intended);
+            if (now < measureEnd) completed.increment();
+        }
+
+        private void recordSendLag(long intended, long now) {
+            if (intended >= measureStart && config.isOpenLoop()) sendLag.record(now - intended);
+        }
+
+        // ---- версионированный протокол ----
+
+        private void sendFramed(FramedConnection c, long intended, long now) {
+            if (!c.key.isValid()) {
+                account(intended, Protocol.STATUS_ERROR, now);
+                return;
+            }
+            inFlight++;
+            int id = c.nextId++;
+            ByteBuffer frame = Protocol.encodeRequest(new Request(id, nextName(), keySpec, format, false, config.tenant));
+            if (c.out.remaining() < frame.remaining()) {
+                c.out = grow(c.out, c.out.position() + frame.remaining());
+            }
+            c.out.put(frame);
+            c.pending.put(id, intended);
+            recordSendLag(intended, now);
+            flush(c, now);
+        }
+
+        private void flush(FramedConnection c, long now) {
+            try {
+                c.out.flip();
+                c.channel.write(c.out);
+                c.out.compact();
+                int ops = c.out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+                if (c.key.interestOps() != ops) c.key.interestOps(ops);
+            } catch (IOException e) {
+                lose(c, now);
+            }
+        }
+
+        private void handleFramed(FramedConnection c, SelectionKey key, long now) {
+            if (key.isWritable()) flush(c, now);
+            if (!key.isValid() || !key.isReadable()) return;
+            try {
+                if (c.channel.read(c.in) == -1) {
+                    lose(c, now);
+                    return;
+                }
+            } catch (IOException e) {
+                lose(c, now);
+                return;
+            }
+            ByteBuffer in = c.in.flip();
+            while (in.remaining() >= 4) {
+                int len = in.getInt(in.position());
+                if (in.remaining() < 4 + len) {
+                    if (4 + len > in.capacity()) c.in = in = grow(in.compact(), 4 + len).flip();
+                    break;
+                }
+                int id = in.getInt(in.position() + 4);
+                byte status = in.get(in.position() + Protocol.FRAME_HEADER);
+                in.position(in.position() + 4 + len);
+                Long intended = c.pending.remove(id);
+                if (intended == null) continue;
+                inFlight--;
+                account(intended, status, now);
+                if (issuing && !config.isOpenLoop()) sendFramed(c, now, now);
+            }
+            in.compact();
+        }
+
+        private void lose(FramedConnection c, long now) {
+            if (!framed.remove(c)) return;
+            lostConnections.increment();
+            c.key.cancel();
+            try { c.channel.close(); } catch (IOException ignored) {}
+            for (long intended : c.pending.values()) {
+                inFlight--;
+                account(intended, Protocol.STATUS_ERROR, now);
+            }
+            c.pending.clear();
+        }
+
+        // ---- старый формат: соединение на запрос ----
+
+        private void startLegacy(long intended, long now) {
+            activeLegacy++;
+            LegacyConnection c = new LegacyConnection(intended, nextName());
+            recordSendLag(intended, now);
+            try {
+                c.channel = ClientSockets.open(address);
+                c.channel.configureBlocking(false);
+                boolean connected = c.channel.connect(address);
+                c.channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, c);
+            } catch (IOException e) {
+                // Без следующего запроса: иначе при лежащем сервере closed loop ушёл бы в рекурсию
+                finishLegacy(c, Protocol.STATUS_ERROR, now, false);
+            }
+        }
+
+        private void handleLegacy(LegacyConnection c, SelectionKey key, long now) {
+            try {
+                if (key.isConnectable()) {
+                    c.channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (key.isWritable()) {
+                    c.channel.write(c.out);
+                    if (!c.out.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                if (key.isReadable()) {
+                    int n = c.channel.read(scratch.clear());
+                    if (n > 0 && c.status < 0) c.status = scratch.get(0);
+                    if (n == -1) finishLegacy(c, c.status < 0 ? Protocol.STATUS_ERROR : c.status, now, true);
+                }
+            } catch (IOException e) {
+                finishLegacy(c, Protocol.STATUS_ERROR, now, true);
+            }
+        }
+
+        private void finishLegacy(LegacyConnection c, int status, long now, boolean next) {
+            if (c.channel != null) {
+                try { c.channel.close(); } catch (IOException ignored) {}
+            }
+            activeLegacy--;
+            inFlight--;
+            account(c.intended, status, now);
+            if (!next) return;
+            if (!arrivals.isEmpty()) {
+                startLegacy(arrivals.poll(), now);
+            } else if (issuing && !config.isOpenLoop()) {
+                issue(now, now);
+            }
+        }
+
+        /** Запросы без ответа к концу прогона входят в задержку со своим возрастом, иначе хвост пропал бы. */
+        private void countUnfinished(long now) {
+            List<Long> left = new ArrayList<>(arrivals);
+            for (FramedConnection c : framed) left.addAll(c.pending.values());
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid() && key.attachment() instanceof LegacyConnection c) left.add(c.intended);
+            }
+            for (long intended : left) {
+                if (intended < measureStart) continue;
+                unfinished.increment();
+                latency.record(now - intended);
+            }
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buf, int atLeast) {
+        ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(atLeast, buf.capacity() * 2));
+        return bigger.put(buf.flip());
+    }
+
+    private static final class FramedConnection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer out = ByteBuffer.allocateDirect(1024);
+        ByteBuffer in = ByteBuffer.allocateDirect(READ_BUFFER);
+        final HashMap<Integer, Long> pending = new HashMap<>();
+        int nextId;
+
+        FramedConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private static final class LegacyConnection {
+        final long intended;
+        final ByteBuffer out;
+        SocketChannel channel;
+        int status = -1;
+
+        LegacyConnection(long intended, String name) {
+            this.intended = intended;
+            this.out = ByteBuffer.wrap((name + "\0").getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.nsu.nocode.client;
+
+import ru.nsu.nocode.protocol.KeySpec;
+import ru.nsu.nocode.protocol.ResponseFormat;
+
+public class LoadGeneratorConfig {
+    public String host;
+    public int port;
+    public int connections = 1000;
+    // 0 - closed loop: каждое соединение шлёт следующий запрос сразу после ответа
+    public double rate = 0;
+    public int threads = 1;
+    public long durationSeconds = 30;
+    public long warmupSeconds = 5;
+    public long drainSeconds = 5;
+    public double hotRatio = 0.9;
+    public int hotNames = 100;
+    public String protocol = "framed";
+    // null - алгоритм по умолчанию сервера
+    public String keyAlgorithm = null;
+    public String format = "pem";
+    // Тег арендатора в каждом запросе; null - без тега
+    public String tenant = null;
+
+    public LoadGeneratorConfig(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public boolean isOpenLoop() {
+        return rate > 0;
+    }
+
+    public boolean isLegacy() {
+        return "legacy".equals(protocol);
+    }
+
+    public KeySpec keySpec() {
+        return keyAlgorithm != null ? KeySpec.parse(keyAlgorithm) : null;
+    }
+
+    public ResponseFormat responseFormat() {
+        return ResponseFormat.valueOf(format.toUpperCase());
+    }
+
+    public void applyOption(String option) {
+        if (!option.startsWith("--") || option.indexOf('=') < 0) {
+            throw new IllegalArgumentException("Expected --name=value, got: " + option);
+        }
+        int eq = option.indexOf('=');
+        String name = option.substring(2, eq);
+        String value = option.substring(eq + 1);
+        switch (name) {
+            case "connections" -> connections = Integer.parseInt(value);
+            case "rate" -> rate = Double.parseDouble(value);
+            case "threads" -> threads = Integer.parseInt(value);
+            case "duration-s" -> durationSeconds = Long.parseLong(value);
+            case "warmup-s" -> warmupSeconds = Long.parseLong(value);
+            case "drain-s" -> drainSeconds = Long.parseLong(value);
+            case "hot-ratio" -> hotRatio = Double.parseDouble(value);
+            case "hot-names" -> hotNames = Integer.parseInt(value);
+            case "protocol" -> protocol = value;
+            case "alg" -> keyAlgorithm = value;
+            case "format" -> format = value;
+            case "tenant" -> tenant = value;
+            default -> throw new IllegalArgumentException("Unknown loadgen option: " + option);
+        }
+    }
+
+    public void validate() {
+        if (threads < 1 || connections < threads) {
+            throw new IllegalArgumentException("Require threads >= 1 and connections >= threads");
+        }
+        if (rate < 0) throw new IllegalArgumentException("rate must be >= 0");
+        if (durationSeconds < 1 || warmupSeconds < 0 || drainSeconds < 0) {
+            throw new IllegalArgumentException("Require duration-s >= 1, warmup-s >= 0, drain-s >= 0");
+        }
+        if (hotRatio < 0 || hotRatio > 1 || hotNames < 1) {
+            throw new IllegalArgumentException("Require 0 <= hot-ratio <= 1 and hot-names >= 1");
+        }
+        if (!"framed".equals(protocol) && !"legacy".equals(protocol)) {
+            throw new IllegalArgumentException("protocol must be framed or legacy, got: " + protocol);
+        }
+        if (keyAlgorithm != null && isLegacy()) {
+            throw new IllegalArgumentException("alg needs the framed protocol");
+        }
+        if (!"pem".equals(format) && !"der".equals(format)) {
+            throw new IllegalArgumentException("format must be pem or der, got: " + format);
+        }
+        if ("der".equals(format) && isLegacy()) {
+            throw new IllegalArgumentException("format=der needs the framed protocol");
+        }
+        if (tenant != null && isLegacy()) {
+            throw new IllegalArgumentException("tenant needs the framed protocol");
+        }
+        keySpec();
+    }
+}
@@ -0,0 +1,21 @@
+package ru.nsu.nocode.client;
+
+import java.io.IOException;
+
+/** Сервер ответил RETRY_LATER: очередь генерации заполнена, имя стоит запросить через retryAfterMs. */
+public class ServerBusyException extends IOException {
+    private final int retryAfterMs;
+
+    public ServerBusyException(String name, int retryAfterMs) {
+        this(retryAfterMs, "Server busy for " + name + ", retry after " + retryAfterMs + " ms");
+    }
+
+    protected ServerBusyException(int retryAfterMs, String message) {
+        super(message);
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    public int retryAfterMs() {
+        return retryAfterMs;
+    }
+}
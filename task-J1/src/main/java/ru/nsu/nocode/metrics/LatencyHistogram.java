@@ -0,0 +1,97 @@
+package ru.nsu.nocode.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма задержек в духе HdrHistogram: до 32 нс значения хранятся точно, дальше каждая
+ * степень двойки делится на 32 равных корзины, так что относительная погрешность не больше ~3%
+ * на всём диапазоне от наносекунд до ~68 секунд (большие значения прижимаются к верхней корзине).
+ *
+ * Запись - один инкремент в AtomicLongArray и два LongAdder, без блокировок и выделений памяти.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_MSB = 36;
+    private static final int BUCKETS = (MAX_MSB - SUB_BITS + 2) * SUB;
+
+    private final String stage;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram(String stage) {
+        this.stage = stage;
+    }
+
+    public String stage() {
+        return stage;
+    }
+
+    public void record(long nanos) {
+        long v = Math.max(0, nanos);
+        counts.incrementAndGet(index(v));
+        count.increment();
+        sum.add(v);
+    }
+
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sumNanos() {
+        return sum.sum();
+    }
+
+    /** Верхняя граница корзины, в которую попадает заданная доля записей (0..1), в наносекундах. */
+    public long valueAtPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += counts.get(i);
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /** Накопленные счётчики для границ le (в наносекундах, по возрастанию); последний элемент - все записи. */
+    long[] cumulative(long[] bounds) {
+        long[] result = new long[bounds.length + 1];
+        int b = 0;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = counts.get(i);
+            if (c == 0) continue;
+            long upper = upperBound(i);
+            while (b < bounds.length && upper > bounds[b]) result[b++] = seen;
+            seen += c;
+        }
+        while (b < bounds.length) result[b++] = seen;
+        result[bounds.length] = seen;
+        return result;
+    }
+
+    static int index(long v) {
+        if (v < SUB) return (int) v;
+        int msb = Math.min(63 - Long.numberOfLeadingZeros(v), MAX_MSB);
+        if (msb == MAX_MSB && v >= 1L << (MAX_MSB + 1)) return BUCKETS - 1;
+        int shift = msb - SUB_BITS;
+        int sub = (int) (v >>> shift) - SUB;
+        return (shift + 1) * SUB + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB) return index;
+        int shift = index / SUB - 1;
+        long sub = index % SUB;
+        return ((SUB + sub + 1) << shift) - 1;
+    }
+}
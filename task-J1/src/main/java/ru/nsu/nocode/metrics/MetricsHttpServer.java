@@ -0,0 +1,52 @@
+package ru.nsu.nocode.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Отдаёт ServerMetrics по GET /metrics на loopback-интерфейсе. */
+public final class MetricsHttpServer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsHttpServer.class);
+
+    private final HttpServer http;
+    private final ServerMetrics metrics;
+
+    public MetricsHttpServer(int port, ServerMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        this.http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", this::handle);
+        http.start();
+        logger.info("Metrics available at http://{}:{}/metrics", InetAddress.getLoopbackAddress().getHostAddress(), port());
+    }
+
+    public int port() {
+        return http.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        http.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+}
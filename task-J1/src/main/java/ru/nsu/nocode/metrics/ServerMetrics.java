@@ -0,0 +1,101 @@
+package ru.nsu.nocode.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Метрики сервера: гистограммы этапов обработки запроса и числовые показатели, которые
+ * считываются через поставщиков только в момент выгрузки. Выгрузка - текстовый формат Prometheus.
+ */
+public final class ServerMetrics {
+    private static final String STAGE_METRIC = "keyserver_stage_duration_seconds";
+    // Границы le для выгрузки, в секундах; точные корзины гистограммы сворачиваются в них
+    private static final double[] BOUNDS_SECONDS = {
+        0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005,
+        0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+            BOUNDS_NANOS[i] = Math.round(BOUNDS_SECONDS[i] * 1e9);
+        }
+    }
+
+    /** От подключения до первого полностью прочитанного запроса. */
+    public final LatencyHistogram acceptToRead = new LatencyHistogram("accept_to_read");
+    /** Ожидание задачи генерации в очереди пула. */
+    public final LatencyHistogram queueWait = new LatencyHistogram("queue_wait");
+    /** Получение пары ключей: из резервуара или генерация на месте. */
+    public final LatencyHistogram keygen = new LatencyHistogram("keygen");
+    /** Построение и подпись сертификата. */
+    public final LatencyHistogram signing = new LatencyHistogram("signing");
+    /** Кодирование пары в PEM и сборка тела ответа. */
+    public final LatencyHistogram pemEncoding = new LatencyHistogram("pem_encoding");
+    /** От готовности ответа до записи последнего байта в сокет. */
+    public final LatencyHistogram write = new LatencyHistogram("write");
+
+    private final List<LatencyHistogram> stages = List.of(acceptToRead, queueWait, keygen, signing, pemEncoding, write);
+    private final List<Value> values = new ArrayList<>();
+
+    public synchronized void gauge(String name, String help, DoubleSupplier supplier) {
+        values.add(new Value(name, "", help, "gauge", supplier));
+    }
+
+    /**
+     * Значение с метками, например labels = operation="sign",backend="BC". Ряды одного имени
+     * регистрируются подряд с одинаковым help: HELP и TYPE выводятся один раз перед первым из них.
+     */
+    public synchronized void gauge(String name, String labels, String help, DoubleSupplier supplier) {
+        values.add(new Value(name, labels, help, "gauge", supplier));
+    }
+
+    /** Монотонный счётчик; по соглашению Prometheus имя должно оканчиваться на _total. */
+    public synchronized void counter(String name, String help, DoubleSupplier supplier) {
+        values.add(new Value(name, "", help, "counter", supplier));
+    }
+
+    public List<LatencyHistogram> stages() {
+        return stages;
+    }
+
+    public synchronized String render() {
+        StringBuilder out = new StringBuilder(8192);
+        out.append("# HELP ").append(STAGE_METRIC).append(" Time spent in each request processing stage.\n");
+        out.append("# TYPE ").append(STAGE_METRIC).append(" histogram\n");
+        for (LatencyHistogram h : stages) {
+            long[] cumulative = h.cumulative(BOUNDS_NANOS);
+            String label = "stage=\"" + h.stage() + "\"";
+            for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+                out.append(STAGE_METRIC).append("_bucket{").append(label).append(",le=\"")
+                    .append(format(BOUNDS_SECONDS[i])).append("\"} ").append(cumulative[i]).append('\n');
+            }
+            out.append(STAGE_METRIC).append("_bucket{").append(label).append(",le=\"+Inf\"} ")
+                .append(cumulative[BOUNDS_SECONDS.length]).append('\n');
+            out.append(STAGE_METRIC).append("_sum{").append(label).append("} ")
+                .append(format(h.sumNanos() / 1e9)).append('\n');
+            out.append(STAGE_METRIC).append("_count{").append(label).append("} ")
+                .append(cumulative[BOUNDS_SECONDS.length]).append('\n');
+        }
+        String previous = null;
+        for (Value v : values) {
+            if (!v.name.equals(previous)) {
+                out.append("# HELP ").append(v.name).append(' ').append(v.help).append('\n');
+                out.append("# TYPE ").append(v.name).append(' ').append(v.type).append('\n');
+                previous = v.name;
+            }
+            out.append(v.name);
+            if (!v.labels.isEmpty()) out.append('{').append(v.labels).append('}');
+            out.append(' ').append(format(v.supplier.getAsDouble())).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    private record Value(String name, String labels, String help, String type, DoubleSupplier supplier) {}
+}
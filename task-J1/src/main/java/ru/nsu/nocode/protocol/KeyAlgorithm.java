@@ -0,0 +1,24 @@
+package ru.nsu.nocode.protocol;
+
+/** Семейство ключа, который выдаёт сервер. code - значение в опции запроса, jcaName - имя для KeyPairGenerator. */
+public enum KeyAlgorithm {
+    RSA(1, "RSA"),
+    EC(2, "EC"),
+    ED25519(3, "Ed25519");
+
+    public final int code;
+    public final String jcaName;
+
+    KeyAlgorithm(int code, String jcaName) {
+        this.code = code;
+        this.jcaName = jcaName;
+    }
+
+    /** null, если код неизвестен. */
+    public static KeyAlgorithm fromCode(int code) {
+        for (KeyAlgorithm a : values()) {
+            if (a.code == code) return a;
+        }
+        return null;
+    }
+}
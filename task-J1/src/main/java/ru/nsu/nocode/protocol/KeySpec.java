@@ -0,0 +1,64 @@
+package ru.nsu.nocode.protocol;
+
+/**
+ * Алгоритм и размер ключа. Для RSA size - длина модуля в битах, для EC - кривая NIST P-size
+ * (256, 384, 521), для Ed25519 размер фиксирован.
+ *
+ * Текстовая форма: rsa-2048, ec-p256, ed25519 (rsa и ec без размера - 2048 и P-256).
+ */
+public record KeySpec(KeyAlgorithm algorithm, int size) {
+    public static final KeySpec RSA_2048 = new KeySpec(KeyAlgorithm.RSA, 2048);
+    public static final KeySpec EC_P256 = new KeySpec(KeyAlgorithm.EC, 256);
+    public static final KeySpec ED25519 = new KeySpec(KeyAlgorithm.ED25519, 255);
+
+    public KeySpec {
+        switch (algorithm) {
+            case RSA -> {
+                if (size < 512 || size > 16384) throw new IllegalArgumentException("RSA key size must be in 512..16384: " + size);
+            }
+            case EC -> {
+                if (size != 256 && size != 384 && size != 521) throw new IllegalArgumentException("Unsupported EC curve: P-" + size);
+            }
+            case ED25519 -> size = 255;
+        }
+    }
+
+    /** Общий экземпляр для частых вариантов, чтобы разбор запроса не создавал новый. */
+    public static KeySpec of(KeyAlgorithm algorithm, int size) {
+        return switch (algorithm) {
+            case RSA -> size == 2048 ? RSA_2048 : new KeySpec(algorithm, size);
+            case EC -> size == 256 ? EC_P256 : new KeySpec(algorithm, size);
+            case ED25519 -> ED25519;
+        };
+    }
+
+    public static KeySpec parse(String text) {
+        String s = text.trim().toLowerCase();
+        int dash = s.indexOf('-');
+        String family = dash < 0 ? s : s.substring(0, dash);
+        String size = dash < 0 ? null : s.substring(dash + 1);
+        try {
+            return switch (family) {
+                case "rsa" -> size == null ? RSA_2048 : of(KeyAlgorithm.RSA, Integer.parseInt(size));
+                case "ec" -> size == null ? EC_P256 : of(KeyAlgorithm.EC, Integer.parseInt(size.startsWith("p") ? size.substring(1) : size));
+                case "ed25519" -> ED25519;
+                default -> throw new IllegalArgumentException("Unknown key algorithm: " + text);
+            };
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad key size in: " + text);
+        }
+    }
+
+    public String label() {
+        return switch (algorithm) {
+            case RSA -> "rsa-" + size;
+            case EC -> "ec-p" + size;
+            case ED25519 -> "ed25519";
+        };
+    }
+
+    @Override
+    public String toString() {
+        return label();
+    }
+}
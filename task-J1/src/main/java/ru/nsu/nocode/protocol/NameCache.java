@@ -0,0 +1,44 @@
+package ru.nsu.nocode.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Таблица недавно разобранных имён. Повторно пришедшее имя возвращается тем же объектом String,
+ * без копирования байт и выделения памяти. Ячейка выбирается по хэшу байт, при коллизии
+ * старое имя просто вытесняется. Не потокобезопасна: по экземпляру на поток разбора.
+ */
+public final class NameCache {
+    private final String[] names;
+    private final int mask;
+
+    public NameCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.names = new String[size];
+        this.mask = size - 1;
+    }
+
+    /** Имя из байт buf[offset, offset + length); позиция буфера не меняется. */
+    public String get(ByteBuffer buf, int offset, int length) {
+        int h = 1;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + buf.get(offset + i);
+        }
+        int slot = (h ^ (h >>> 16)) & mask;
+        String name = names[slot];
+        if (name != null && matches(name, buf, offset, length)) return name;
+        byte[] bytes = new byte[length];
+        buf.get(offset, bytes);
+        name = new String(bytes, StandardCharsets.US_ASCII);
+        names[slot] = name;
+        return name;
+    }
+
+    private static boolean matches(String name, ByteBuffer buf, int offset, int length) {
+        if (name.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != (buf.get(offset + i) & 0xFF)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,211 @@
+package ru.nsu.nocode.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Форматы обмена. Первый байт соединения выбирает протокол:
+ * ASCII байт (старший бит 0) - старый одноразовый формат "имя\0",
+ * байт 0x80|version - версионированный протокол с кадрами и идентификаторами запросов.
+ *
+ * Кадр запроса (версия 1):  [len:u16][requestId:i32][nameLen:u8][name][опции...]
+ * Кадр ответа (версия 1):   [len:i32][requestId:i32][status:u8][тело как в старом формате]
+ * Поле len не включает само себя.
+ *
+ * Тело STATUS_RETRY_LATER - [retryAfterMs:i32]: очередь генерации заполнена, имя стоит запросить позже.
+ * Тело STATUS_THROTTLED такое же: клиент (адрес или тег арендатора) исчерпал свою норму новых генераций.
+ *
+ * Опции запроса идут после имени до конца кадра: [type:u8][len:u8][value]. Неизвестные типы пропускаются.
+ * OPTION_KEY_SPEC: [algorithm:u8][size:u16] - см. KeyAlgorithm.code и KeySpec.
+ * OPTION_FORMAT: [format:u8] - см. ResponseFormat.code; без опции ответ в PEM.
+ * OPTION_FORWARDED: без значения - запрос переслан узлом кластера владельцу имени; сервер верит ему
+ * только на соединениях с адресов узлов кластера (KeyServer.forwardedBy).
+ * OPTION_TENANT: [tag] в ASCII, 1..MAX_TENANT_LENGTH байт - арендатор, по которому сервер делит генерацию.
+ */
+public final class Protocol {
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    public static final byte STATUS_RETRY_LATER = 2;
+    public static final byte STATUS_THROTTLED = 3;
+
+    public static final int VERSION_MARKER = 0x80;
+    public static final int VERSION_1 = 1;
+
+    public static final int MAX_NAME_LENGTH = 255;
+    public static final int MAX_TENANT_LENGTH = 64;
+    public static final int MIN_REQUEST_FRAME = 4 + 1;
+    public static final int MAX_REQUEST_FRAME = 1024;
+    public static final int FRAME_HEADER = 4 + 4;
+
+    public static final int OPTION_KEY_SPEC = 1;
+    public static final int OPTION_FORMAT = 2;
+    public static final int OPTION_FORWARDED = 3;
+    public static final int OPTION_TENANT = 4;
+
+    private Protocol() {}
+
+    public static byte versionByte(int version) {
+        return (byte) (VERSION_MARKER | version);
+    }
+
+    /**
+     * Тело успешного ответа: [status][privLen][priv][certLen][cert]. Для старого формата это весь ответ,
+     * в версии 1 перед ним идёт frameHeader. Буфер прямой и только для чтения - его можно хранить
+     * и отдавать многим клиентам через duplicate().
+     */
+    public static ByteBuffer okPayload(ByteBuffer priv, ByteBuffer cert) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(1 + 4 + priv.remaining() + 4 + cert.remaining());
+        bb.put(STATUS_OK);
+        bb.putInt(priv.remaining()).put(priv.duplicate());
+        bb.putInt(cert.remaining()).put(cert.duplicate());
+        return bb.flip().asReadOnlyBuffer();
+    }
+
+    /** Заголовок кадра ответа версии 1 перед телом длиной payloadLength (начиная с байта статуса). */
+    public static ByteBuffer frameHeader(int requestId, int payloadLength) {
+        return putFrameHeader(ByteBuffer.allocate(FRAME_HEADER), requestId, payloadLength).flip();
+    }
+
+    /** То же, что frameHeader, но в переданный буфер - для повторно используемых буферов. */
+    public static ByteBuffer putFrameHeader(ByteBuffer dst, int requestId, int payloadLength) {
+        return dst.putInt(4 + payloadLength).putInt(requestId);
+    }
+
+    public static ByteBuffer legacyError(String message) {
+        byte[] msg = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer bb = ByteBuffer.allocate(1 + 4 + msg.length);
+        bb.put(STATUS_ERROR);
+        bb.putInt(msg.length).put(msg);
+        return bb.flip();
+    }
+
+    public static ByteBuffer frameError(int requestId, String message) {
+        byte[] msg = message.getBytes(StandardCharsets.UTF_8);
+        int len = 4 + 1 + 4 + msg.length;
+        ByteBuffer bb = ByteBuffer.allocate(4 + len);
+        bb.putInt(len).putInt(requestId).put(STATUS_ERROR);
+        bb.putInt(msg.length).put(msg);
+        return bb.flip();
+    }
+
+    public static ByteBuffer legacyRetryLater(int retryAfterMs) {
+        return ByteBuffer.allocate(1 + 4).put(STATUS_RETRY_LATER).putInt(retryAfterMs).flip();
+    }
+
+    public static ByteBuffer frameRetryLater(int requestId, int retryAfterMs) {
+        ByteBuffer bb = ByteBuffer.allocate(FRAME_HEADER + 1 + 4);
+        return putFrameHeader(bb, requestId, 1 + 4).put(STATUS_RETRY_LATER).putInt(retryAfterMs).flip();
+    }
+
+    public static ByteBuffer legacyThrottled(int retryAfterMs) {
+        return ByteBuffer.allocate(1 + 4).put(STATUS_THROTTLED).putInt(retryAfterMs).flip();
+    }
+
+    public static ByteBuffer frameThrottled(int requestId, int retryAfterMs) {
+        ByteBuffer bb = ByteBuffer.allocate(FRAME_HEADER + 1 + 4);
+        return putFrameHeader(bb, requestId, 1 + 4).put(STATUS_THROTTLED).putInt(retryAfterMs).flip();
+    }
+
+    public static ByteBuffer encodeRequest(Request request) {
+        byte[] name = request.name().getBytes(StandardCharsets.US_ASCII);
+        if (name.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Name too long: " + name.length);
+        }
+        byte[] tenant = request.tenant() != null ? request.tenant().getBytes(StandardCharsets.US_ASCII) : null;
+        if (tenant != null && (tenant.length == 0 || tenant.length > MAX_TENANT_LENGTH)) {
+            throw new IllegalArgumentException("Tenant tag must be 1.." + MAX_TENANT_LENGTH + " bytes: " + tenant.length);
+        }
+        KeySpec spec = request.keySpec();
+        boolean der = request.format() == ResponseFormat.DER;
+        int len = 4 + 1 + name.length + (spec != null ? 2 + 3 : 0) + (der ? 2 + 1 : 0) + (request.forwarded() ? 2 : 0)
+            + (tenant != null ? 2 + tenant.length : 0);
+        ByteBuffer bb = ByteBuffer.allocate(2 + len);
+        bb.putShort((short) len).putInt(request.id()).put((byte) name.length).put(name);
+        if (spec != null) {
+            bb.put((byte) OPTION_KEY_SPEC).put((byte) 3).put((byte) spec.algorithm().code).putShort((short) spec.size());
+        }
+        if (der) {
+            bb.put((byte) OPTION_FORMAT).put((byte) 1).put((byte) request.format().code);
+        }
+        if (request.forwarded()) {
+            bb.put((byte) OPTION_FORWARDED).put((byte) 0);
+        }
+        if (tenant != null) {
+            bb.put((byte) OPTION_TENANT).put((byte) tenant.length).put(tenant);
+        }
+        return bb.flip();
+    }
+
+    /**
+     * Разбирает один кадр запроса, если он полностью лежит в буфере, и сдвигает позицию за него.
+     * Возвращает null, если данных пока не хватает.
+     */
+    public static Request decodeRequest(ByteBuffer buf) throws ProtocolException {
+        return decodeRequest(buf, null);
+    }
+
+    /** Как decodeRequest(buf), но повторяющиеся имена берутся из names без выделения памяти. */
+    public static Request decodeRequest(ByteBuffer buf, NameCache names) throws ProtocolException {
+        if (buf.remaining() < 2) return null;
+        int len = buf.getShort(buf.position()) & 0xFFFF;
+        if (len < MIN_REQUEST_FRAME || len > MAX_REQUEST_FRAME) {
+            throw new ProtocolException("Bad frame length: " + len);
+        }
+        if (buf.remaining() < 2 + len) return null;
+        int start = buf.position() + 2;
+        int end = start + len;
+        buf.position(start);
+        int requestId = buf.getInt();
+        int nameLen = buf.get() & 0xFF;
+        if (nameLen > end - buf.position()) {
+            throw new ProtocolException("Name length " + nameLen + " exceeds frame");
+        }
+        int nameStart = buf.position();
+        String name = names != null ? names.get(buf, nameStart, nameLen) : ascii(buf, nameLen);
+        buf.position(nameStart + nameLen);
+        KeySpec keySpec = null;
+        ResponseFormat format = ResponseFormat.PEM;
+        boolean forwarded = false;
+        String tenant = null;
+        while (buf.position() < end) {
+            if (end - buf.position() < 2) throw new ProtocolException("Truncated option");
+            int type = buf.get() & 0xFF;
+            int optionLen = buf.get() & 0xFF;
+            if (optionLen > end - buf.position()) {
+                throw new ProtocolException("Option length " + optionLen + " exceeds frame");
+            }
+            if (type == OPTION_KEY_SPEC && optionLen == 3) {
+                keySpec = decodeKeySpec(buf);
+            } else if (type == OPTION_FORMAT && optionLen == 1) {
+                int code = buf.get() & 0xFF;
+                format = ResponseFormat.fromCode(code);
+                if (format == null) throw new ProtocolException("Unknown response format: " + code);
+            } else if (type == OPTION_FORWARDED && optionLen == 0) {
+                forwarded = true;
+            } else if (type == OPTION_TENANT && optionLen > 0 && optionLen <= MAX_TENANT_LENGTH) {
+                tenant = ascii(buf, optionLen);
+            } else {
+                buf.position(buf.position() + optionLen);
+            }
+        }
+        return new Request(requestId, name, keySpec, format, forwarded, tenant);
+    }
+
+    private static KeySpec decodeKeySpec(ByteBuffer buf) throws ProtocolException {
+        int code = buf.get() & 0xFF;
+        int size = buf.getShort() & 0xFFFF;
+        KeyAlgorithm algorithm = KeyAlgorithm.fromCode(code);
+        if (algorithm == null) throw new ProtocolException("Unknown key algorithm: " + code);
+        try {
+            return KeySpec.of(algorithm, size);
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolException(e.getMessage());
+        }
+    }
+
+    private static String ascii(ByteBuffer buf, int len) {
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,9 @@
+package ru.nsu.nocode.protocol;
+
+import java.io.IOException;
+
+public class ProtocolException extends IOException {
+    public ProtocolException(String message) {
+        super(message);
+    }
+}
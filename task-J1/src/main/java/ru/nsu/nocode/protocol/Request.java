@@ -0,0 +1,24 @@
+package ru.nsu.nocode.protocol;
+
+/**
+ * keySpec == null - клиент не выбирал алгоритм, сервер подставит свой по умолчанию.
+ * forwarded - запрос переслан другим узлом кластера и должен обслуживаться здесь, без новой пересылки.
+ * tenant - тег арендатора из OPTION_TENANT или null.
+ */
+public record Request(int id, String name, KeySpec keySpec, ResponseFormat format, boolean forwarded, String tenant) {
+    public Request(int id, String name) {
+        this(id, name, null);
+    }
+
+    public Request(int id, String name, KeySpec keySpec) {
+        this(id, name, keySpec, ResponseFormat.PEM);
+    }
+
+    public Request(int id, String name, KeySpec keySpec, ResponseFormat format) {
+        this(id, name, keySpec, format, false);
+    }
+
+    public Request(int id, String name, KeySpec keySpec, ResponseFormat format, boolean forwarded) {
+        this(id, name, keySpec, format, forwarded, null);
+    }
+}
@@ -0,0 +1,24 @@
+package ru.nsu.nocode.protocol;
+
+/**
+ * Кодировка ключа и сертификата в теле ответа. PEM - как в старом формате; DER - те же структуры
+ * без base64 и строк BEGIN/END, примерно на треть короче. code - значение в опции запроса.
+ */
+public enum ResponseFormat {
+    PEM(0),
+    DER(1);
+
+    public final int code;
+
+    ResponseFormat(int code) {
+        this.code = code;
+    }
+
+    /** null, если код неизвестен. */
+    public static ResponseFormat fromCode(int code) {
+        for (ResponseFormat f : values()) {
+            if (f.code == code) return f;
+        }
+        return null;
+    }
+}
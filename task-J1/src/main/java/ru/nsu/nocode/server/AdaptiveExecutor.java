@@ -0,0 +1,208 @@
+package ru.nsu.nocode.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.nsu.nocode.metrics.LatencyHistogram;
+
+/**
+ * Пул генерации, который сам подбирает число потоков между minThreads и maxThreads (AIMD).
+ * Раз в intervalMs контроллер смотрит на окно с прошлого шага: среднее ожидание задачи в очереди
+ * (по гистограмме queue_wait), занятость потоков и загрузку CPU машины.
+ *
+ * - ожидание выше targetWaitMs и CPU не насыщен - плюс один поток;
+ * - ожидание выше цели, но CPU насыщен (cpuHigh) и потоков больше, чем ядер, - умножение на 3/4:
+ *   лишние потоки только делят те же ядра;
+ * - очередь пуста и потоки заняты меньше чем наполовину - умножение на 3/4.
+ *
+ * Каждое изменение пишется в лог и в кольцо последних решений (decisions()), счётчики - в метрики.
+ * При minThreads == maxThreads контроллер не запускается и пул ведёт себя как фиксированный.
+ */
+public final class AdaptiveExecutor extends ThreadPoolExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveExecutor.class);
+    private static final double LOW_UTILIZATION = 0.5;
+    private static final int DECISION_HISTORY = 64;
+
+    private final int minThreads;
+    private final int maxThreads;
+    private final double targetWaitMs;
+    private final double cpuHigh;
+    private final LatencyHistogram queueWait;
+    private final ScheduledExecutorService controller;
+    private final com.sun.management.OperatingSystemMXBean os;
+    private final int cores = Runtime.getRuntime().availableProcessors();
+    private final ThreadLocal<Long> startedAt = new ThreadLocal<>();
+    private final LongAdder busyNanos = new LongAdder();
+    private final LongAdder grows = new LongAdder();
+    private final LongAdder shrinks = new LongAdder();
+    private final ArrayDeque<Decision> decisions = new ArrayDeque<>();
+
+    // Только поток контроллера
+    private long lastTick = System.nanoTime();
+    private long lastBusy;
+    private long lastWaitCount;
+    private long lastWaitSum;
+    private volatile double lastCpuLoad = -1;
+
+    /** Изменение размера пула и то, на что контроллер смотрел. cpuLoad < 0 - нет данных. */
+    public record Decision(long timeMillis, int from, int to, String reason,
+                           double queueWaitMs, double utilization, double cpuLoad, int queued) {
+        @Override
+        public String toString() {
+            return String.format("%d -> %d (%s): queue wait %.1f ms, utilization %.2f, cpu %.2f, queued %d",
+                from, to, reason, queueWaitMs, utilization, cpuLoad, queued);
+        }
+    }
+
+    public AdaptiveExecutor(int initialThreads, int minThreads, int maxThreads, long intervalMs,
+                            double targetWaitMs, double cpuHigh, LatencyHistogram queueWait) {
+        super(clamp(initialThreads, minThreads, maxThreads), clamp(initialThreads, minThreads, maxThreads),
+            0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), namedThreads());
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.targetWaitMs = targetWaitMs;
+        this.cpuHigh = cpuHigh;
+        this.queueWait = queueWait;
+        this.lastWaitCount = queueWait.count();
+        this.lastWaitSum = queueWait.sumNanos();
+        this.os = ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean b
+            ? b : null;
+        if (maxThreads > minThreads) {
+            controller = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "GeneratorPoolController");
+                t.setDaemon(true);
+                return t;
+            });
+            controller.scheduleWithFixedDelay(this::adjust, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+            logger.info("Adaptive generator pool: {} threads, bounds {}..{}, target queue wait {} ms, cpu high {}",
+                getCorePoolSize(), minThreads, maxThreads, targetWaitMs, cpuHigh);
+        } else {
+            controller = null;
+        }
+    }
+
+    private static int clamp(int v, int min, int max) {
+        return Math.max(min, Math.min(max, v));
+    }
+
+    private static ThreadFactory namedThreads() {
+        AtomicInteger n = new AtomicInteger();
+        return r -> new Thread(r, "KeyGen-" + n.getAndIncrement());
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        startedAt.set(System.nanoTime());
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        busyNanos.add(System.nanoTime() - startedAt.get());
+    }
+
+    /** Текущее число потоков пула. */
+    public int size() {
+        return getCorePoolSize();
+    }
+
+    public long growCount() {
+        return grows.sum();
+    }
+
+    public long shrinkCount() {
+        return shrinks.sum();
+    }
+
+    /** Загрузка CPU машины на последнем шаге контроллера, 0..1; -1 - не измерялась. */
+    public double cpuLoad() {
+        return lastCpuLoad;
+    }
+
+    /** Последние изменения размера, от старых к новым. */
+    public List<Decision> decisions() {
+        synchronized (decisions) {
+            return new ArrayList<>(decisions);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (controller != null) controller.shutdownNow();
+        super.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        if (controller != null) controller.shutdownNow();
+        return super.shutdownNow();
+    }
+
+    private void adjust() {
+        try {
+            long now = System.nanoTime();
+            long busy = busyNanos.sum();
+            long waitCount = queueWait.count();
+            long waitSum = queueWait.sumNanos();
+            int size = size();
+            double window = now - lastTick;
+            double utilization = window > 0 ? (busy - lastBusy) / (window * size) : 0;
+            double waitMs = waitCount > lastWaitCount ? (waitSum - lastWaitSum) / 1e6 / (waitCount - lastWaitCount) : 0;
+            lastTick = now;
+            lastBusy = busy;
+            lastWaitCount = waitCount;
+            lastWaitSum = waitSum;
+            double cpu = os != null ? os.getCpuLoad() : -1;
+            lastCpuLoad = cpu;
+            int queued = getQueue().size();
+
+            int target = size;
+            String reason = null;
+            if (waitMs > targetWaitMs && queued > 0) {
+                if (cpu >= cpuHigh && size > cores) {
+                    target = Math.max(cores, size * 3 / 4);
+                    reason = "cpu saturated";
+                } else if (cpu < cpuHigh) {
+                    target = size + 1;
+                    reason = "queue wait";
+                }
+            } else if (queued == 0 && utilization < LOW_UTILIZATION) {
+                target = size * 3 / 4;
+                reason = "idle";
+            }
+            target = clamp(target, minThreads, maxThreads);
+            if (target == size) return;
+            resize(target);
+            Decision d = new Decision(System.currentTimeMillis(), size, target, reason, waitMs, utilization, cpu, queued);
+            (target > size ? grows : shrinks).increment();
+            synchronized (decisions) {
+                if (decisions.size() == DECISION_HISTORY) decisions.removeFirst();
+                decisions.addLast(d);
+            }
+            logger.info("Generator pool {}", d);
+        } catch (RuntimeException e) {
+            logger.error("Generator pool controller failed: {}", e.getMessage(), e);
+        }
+    }
+
+    private void resize(int threads) {
+        // Ядро не может превышать максимум, поэтому порядок зависит от направления
+        if (threads > getMaximumPoolSize()) {
+            setMaximumPoolSize(threads);
+            setCorePoolSize(threads);
+        } else {
+            setCorePoolSize(threads);
+            setMaximumPoolSize(threads);
+        }
+    }
+}
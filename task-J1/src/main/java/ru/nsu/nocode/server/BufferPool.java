@@ -0,0 +1,42 @@
+package ru.nsu.nocode.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Пул прямых буферов одного размера для чтения запросов. Соединение берёт буфер, только когда
+ * из сокета пришли данные, и возвращает его, как только в нём не осталось неразобранных байт,
+ * так что простаивающие соединения памяти под чтение не держат.
+ * Принадлежит одному реактору, не потокобезопасен.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> free;
+    private volatile long allocated;
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.free = new ArrayDeque<>(maxPooled);
+    }
+
+    ByteBuffer lease() {
+        ByteBuffer buf = free.pollLast();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(bufferSize);
+            allocated++;
+        }
+        return buf;
+    }
+
+    void release(ByteBuffer buf) {
+        buf.clear();
+        if (free.size() < maxPooled) free.addLast(buf);
+    }
+
+    /** Сколько буферов пришлось выделить за всё время; в установившемся режиме не растёт. */
+    long allocatedCount() {
+        return allocated;
+    }
+}
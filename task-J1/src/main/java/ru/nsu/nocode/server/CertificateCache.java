@@ -0,0 +1,400 @@
+package ru.nsu.nocode.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ограниченный кэш с политикой W-TinyLFU: новые записи попадают в маленькое LRU окно (1%),
+ * а в основную SLRU область (probation + protected) вытесненный из окна кандидат проходит
+ * только если по FrequencySketch он встречался чаще, чем жертва из основной области.
+ * Поэтому поток одноразовых имён не вымывает часто запрашиваемые.
+ *
+ * Чтение идёт из ConcurrentHashMap без блокировок; учёт обращений и вытеснение выполняются
+ * под одной блокировкой, а если она занята, обращение откладывается в небольшой буфер с потерями.
+ * Вес записи (байты PEM) становится известен после завершения генерации.
+ */
+public class CertificateCache {
+    private static final Logger logger = LoggerFactory.getLogger(CertificateCache.class);
+    private static final int READ_BUFFER_SIZE = 256;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final ConcurrentHashMap<KeyServer.CacheKey, Node> data = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayBlockingQueue<Node> readBuffer = new ArrayBlockingQueue<>(READ_BUFFER_SIZE);
+    private final FrequencySketch sketch;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final int windowMaxEntries;
+    private final long windowMaxBytes;
+    private final int protectedMaxEntries;
+
+    private final Deque window = new Deque();
+    private final Deque probation = new Deque();
+    private final Deque protectedQueue = new Deque();
+    private long windowBytes;
+    private long mainBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder admissionRejections = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    private final long ttlNanos;
+    private final TimingWheel ttlWheel;
+
+    public CertificateCache(int maxEntries, long maxBytes, long ttlMillis) {
+        if (maxEntries < 2) throw new IllegalArgumentException("maxEntries must be >= 2");
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.windowMaxEntries = Math.max(1, maxEntries / 100);
+        this.windowMaxBytes = Math.max(1, maxBytes / 100);
+        this.protectedMaxEntries = (maxEntries - windowMaxEntries) * 8 / 10;
+        this.sketch = new FrequencySketch(maxEntries);
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.ttlWheel = new TimingWheel(Math.max(1, ttlMillis / 1000), System.nanoTime());
+    }
+
+    KeyServer.CacheEntry get(KeyServer.CacheKey key) {
+        Node node = data.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (lock.tryLock()) {
+            try {
+                drainReadBuffer();
+                onAccess(node);
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            readBuffer.offer(node);
+        }
+        return node.value;
+    }
+
+    /** Запись без учёта обращения и без счётчиков попаданий - для повторной проверки после промаха. */
+    KeyServer.CacheEntry peek(KeyServer.CacheKey key) {
+        Node node = data.get(key);
+        return node != null ? node.value : null;
+    }
+
+    void put(KeyServer.CacheKey key, KeyServer.CacheEntry value) {
+        Node node = new Node(key, value);
+        lock.lock();
+        try {
+            drainReadBuffer();
+            Node old = data.put(key, node);
+            if (old != null) unlink(old);
+            sketch.increment(key);
+            window.addLast(node);
+            node.queue = WINDOW;
+            node.expiry = ttlWheel.schedule(System.nanoTime() + ttlNanos, () -> expireNode(node));
+            evict();
+        } finally {
+            lock.unlock();
+        }
+        value.future.thenAccept(p -> setWeight(node, p.size()));
+    }
+
+    /**
+     * Подменяет обновлённую запись old на value на том же месте в очередях, с новым TTL и весом.
+     * Если old уже вытеснена или истекла, value добавляется как новая запись.
+     */
+    void replace(KeyServer.CacheKey key, KeyServer.CacheEntry old, KeyServer.CacheEntry value) {
+        Node node;
+        lock.lock();
+        try {
+            node = data.get(key);
+            if (node != null && node.value == old && node.queue >= 0) {
+                node.value = value;
+                if (node.expiry != null) node.expiry.cancel();
+                Node n = node;
+                node.expiry = ttlWheel.schedule(System.nanoTime() + ttlNanos, () -> expireNode(n));
+            } else {
+                node = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (node == null) {
+            put(key, value);
+            return;
+        }
+        Node n = node;
+        value.future.thenAccept(p -> setWeight(n, p.size()));
+    }
+
+    /** Оценка частоты обращений к ключу по скетчу (0..15); -1, если кэш сейчас занят другим потоком. */
+    int frequency(KeyServer.CacheKey key) {
+        if (!lock.tryLock()) return -1;
+        try {
+            return sketch.frequency(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void remove(KeyServer.CacheKey key) {
+        lock.lock();
+        try {
+            Node node = data.remove(key);
+            if (node != null) unlink(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Удаляет запись, только если под ключом всё ещё value, а не более новая. */
+    void remove(KeyServer.CacheKey key, KeyServer.CacheEntry value) {
+        lock.lock();
+        try {
+            Node node = data.get(key);
+            if (node != null && node.value == value) {
+                unlink(node);
+                data.remove(key, node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Удаляет записи с истёкшим TTL. Вызывается из цикла реактора; если кэш занят другим потоком,
+     * просто пропускает ход - колесо догонит на следующем вызове.
+     */
+    void expire(long nowNanos) {
+        if (!lock.tryLock()) return;
+        try {
+            ttlWheel.advance(nowNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    public long weightedBytes() {
+        lock.lock();
+        try {
+            return windowBytes + mainBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int maxEntries() {
+        return maxEntries;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    public long admissionRejectionCount() {
+        return admissionRejections.sum();
+    }
+
+    public long expirationCount() {
+        return expirations.sum();
+    }
+
+    public double hitRatio() {
+        long h = hits.sum(), total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    private void setWeight(Node node, long weight) {
+        lock.lock();
+        try {
+            if (node.queue < 0) return;
+            if (node.queue == WINDOW) windowBytes += weight - node.weight;
+            else mainBytes += weight - node.weight;
+            node.weight = weight;
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drainReadBuffer() {
+        Node node;
+        while ((node = readBuffer.poll()) != null) {
+            onAccess(node);
+        }
+    }
+
+    private void onAccess(Node node) {
+        sketch.increment(node.key);
+        switch (node.queue) {
+            case WINDOW -> window.moveToLast(node);
+            case PROBATION -> {
+                probation.remove(node);
+                protectedQueue.addLast(node);
+                node.queue = PROTECTED;
+                while (protectedQueue.size > protectedMaxEntries) {
+                    Node demoted = protectedQueue.pollFirst();
+                    probation.addLast(demoted);
+                    demoted.queue = PROBATION;
+                }
+            }
+            case PROTECTED -> protectedQueue.moveToLast(node);
+            default -> { }
+        }
+    }
+
+    private void evict() {
+        while (window.size > windowMaxEntries || (windowBytes > windowMaxBytes && window.size > 1)) {
+            Node candidate = window.pollFirst();
+            windowBytes -= candidate.weight;
+            candidate.queue = -1;
+            admit(candidate);
+        }
+        // Вес может вырасти уже после попадания в основную область
+        while (mainSize() > maxEntries - windowMaxEntries || mainBytes > maxBytes - windowMaxBytes) {
+            Node victim = probation.head != null ? probation.head : protectedQueue.head;
+            if (victim == null) break;
+            evictNode(victim);
+        }
+    }
+
+    private void admit(Node candidate) {
+        while (!mainHasRoom(candidate.weight)) {
+            Node victim = probation.head != null ? probation.head : protectedQueue.head;
+            if (victim == null || sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                admissionRejections.increment();
+                unlink(candidate);
+                data.remove(candidate.key, candidate);
+                evictions.increment();
+                logger.debug("Cache admission rejected: {}", candidate.key);
+                return;
+            }
+            evictNode(victim);
+        }
+        probation.addLast(candidate);
+        candidate.queue = PROBATION;
+        mainBytes += candidate.weight;
+    }
+
+    private boolean mainHasRoom(long weight) {
+        return mainSize() + 1 <= maxEntries - windowMaxEntries && mainBytes + weight <= maxBytes - windowMaxBytes;
+    }
+
+    private int mainSize() {
+        return probation.size + protectedQueue.size;
+    }
+
+    private void expireNode(Node node) {
+        if (node.queue < 0) return;
+        unlink(node);
+        data.remove(node.key, node);
+        expirations.increment();
+    }
+
+    private void evictNode(Node node) {
+        unlink(node);
+        data.remove(node.key, node);
+        evictions.increment();
+        logger.debug("Cache evicted: {}", node.key);
+    }
+
+    private void unlink(Node node) {
+        switch (node.queue) {
+            case WINDOW -> {
+                window.remove(node);
+                windowBytes -= node.weight;
+            }
+            case PROBATION -> {
+                probation.remove(node);
+                mainBytes -= node.weight;
+            }
+            case PROTECTED -> {
+                protectedQueue.remove(node);
+                mainBytes -= node.weight;
+            }
+            default -> { }
+        }
+        node.queue = -1;
+        if (node.expiry != null) {
+            node.expiry.cancel();
+            node.expiry = null;
+        }
+    }
+
+    private static final class Node {
+        final KeyServer.CacheKey key;
+        // Меняется только replace; читается без блокировки в get
+        volatile KeyServer.CacheEntry value;
+        long weight;
+        int queue = -1;
+        TimingWheel.Timeout expiry;
+        Node prev;
+        Node next;
+
+        Node(KeyServer.CacheKey key, KeyServer.CacheEntry value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final class Deque {
+        Node head;
+        Node tail;
+        int size;
+
+        void addLast(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) head = node;
+            else tail.next = node;
+            tail = node;
+            size++;
+        }
+
+        Node pollFirst() {
+            Node node = head;
+            if (node != null) remove(node);
+            return node;
+        }
+
+        void remove(Node node) {
+            if (node.prev == null) head = node.next;
+            else node.prev.next = node.next;
+            if (node.next == null) tail = node.prev;
+            else node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            size--;
+        }
+
+        void moveToLast(Node node) {
+            if (tail == node) return;
+            remove(node);
+            addLast(node);
+        }
+    }
+}
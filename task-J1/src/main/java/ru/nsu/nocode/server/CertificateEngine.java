@@ -0,0 +1,280 @@
+package ru.nsu.nocode.server;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.edec.EdECObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.nsu.nocode.protocol.KeySpec;
+
+/**
+ * Сборка сертификатов без BouncyCastle-построителя. Всё, что зависит только от издателя, - DER имени
+ * издателя, идентификатор алгоритма подписи, версия - кодируется один раз в конструкторе. На каждый
+ * сертификат меняются только серийный номер, даты (кэшируются на секунду), subject и открытый ключ,
+ * а TBSCertificate и Certificate склеиваются из готовых кусков DER. Signature и SecureRandom свои
+ * у каждого потока и переиспользуются: после sign() Signature снова готова подписывать тем же ключом.
+ * Signature берётся у переданного KeyBackend (по умолчанию BouncyCastle).
+ *
+ * Результат побайтно совпадает с CertificateUtils.buildCertificate (расширений там нет, поэтому нет
+ * и здесь). Конструктор проверяет это на тестовом сертификате; при расхождении движок пишет
+ * предупреждение и дальше выдаёт сертификаты через BouncyCastle.
+ */
+public final class CertificateEngine {
+    private static final Logger logger = LoggerFactory.getLogger(CertificateEngine.class);
+
+    private static final byte[] VERSION_3 = { (byte) 0xA0, 0x03, 0x02, 0x01, 0x02 };
+    private static final byte[] CN_OID = { 0x06, 0x03, 0x55, 0x04, 0x03 };
+
+    private final PrivateKey issuerKey;
+    private final String issuerDN;
+    private final String signatureAlgorithm;
+    private final byte[] issuer;
+    private final byte[] algorithmId;
+    private final KeyBackend backend;
+    private final ThreadLocal<Signer> signers;
+    private final boolean fallback;
+    private volatile Validity validity = new Validity(Long.MIN_VALUE, null);
+
+    public CertificateEngine(PrivateKey issuerKey, String issuerDN) throws IOException {
+        this(issuerKey, issuerDN, JcaKeyBackend.bouncyCastle());
+    }
+
+    public CertificateEngine(PrivateKey issuerKey, String issuerDN, KeyBackend backend) throws IOException {
+        this.issuerKey = issuerKey;
+        this.backend = backend;
+        this.issuerDN = issuerDN;
+        this.signatureAlgorithm = CertificateUtils.signatureAlgorithm(issuerKey);
+        this.issuer = new X500Name(issuerDN).getEncoded(ASN1Encoding.DER);
+        this.algorithmId = algorithmIdentifier(signatureAlgorithm).getEncoded(ASN1Encoding.DER);
+        this.signers = ThreadLocal.withInitial(this::newSigner);
+        this.fallback = !selfCheck();
+    }
+
+    /** Готовый сертификат в DER. */
+    public byte[] issue(String cn, PublicKey pub) throws Exception {
+        Signer signer = signers.get();
+        BigInteger serial = new BigInteger(160, signer.random);
+        long now = System.currentTimeMillis();
+        if (fallback) {
+            return CertificateUtils.buildCertificate(cn, pub, issuerKey, issuerDN, serial,
+                new Date(now - CertificateUtils.BACKDATE_MS), new Date(now + CertificateUtils.VALIDITY_MS)).getEncoded();
+        }
+        return assemble(signer.signature, cn, pub, serial, validityAt(now));
+    }
+
+    public KeyBackend backend() {
+        return backend;
+    }
+
+    public boolean isFallback() {
+        return fallback;
+    }
+
+    private byte[] assemble(Signature signature, String cn, PublicKey pub, BigInteger serial, byte[] validity)
+            throws GeneralSecurityException, IOException {
+        byte[] serialBytes = serial.toByteArray();
+        byte[] subject = subject(cn);
+        byte[] spki = pub.getEncoded();
+        int tbsBody = VERSION_3.length + 2 + serialBytes.length + algorithmId.length + issuer.length
+            + validity.length + subject.length + spki.length;
+
+        Der tbs = new Der(tbsBody + 4);
+        tbs.header(0x30, tbsBody);
+        tbs.put(VERSION_3);
+        tbs.header(0x02, serialBytes.length).put(serialBytes);
+        tbs.put(algorithmId).put(issuer).put(validity).put(subject).put(spki);
+
+        signature.update(tbs.bytes, 0, tbs.length);
+        byte[] sig = signature.sign();
+
+        int bitString = 1 + sig.length;
+        int certBody = tbs.length + algorithmId.length + Der.headerLength(bitString) + bitString;
+        Der cert = new Der(certBody + 4);
+        cert.header(0x30, certBody);
+        cert.put(tbs.bytes, tbs.length).put(algorithmId);
+        cert.header(0x03, bitString).put(new byte[] { 0 }).put(sig);
+        return cert.toByteArray();
+    }
+
+    /**
+     * Имя из букв, цифр и безопасных знаков кодируется напрямую как CN в UTF8String - так же его
+     * кодирует X500Name. Запятые, кавычки, '#', пробелы по краям и прочее разбирает сам X500Name.
+     */
+    private static byte[] subject(String cn) throws IOException {
+        if (!isPlain(cn)) return new X500Name("CN=" + cn).getEncoded(ASN1Encoding.DER);
+        byte[] value = cn.getBytes(StandardCharsets.UTF_8);
+        int atv = CN_OID.length + Der.headerLength(value.length) + value.length;
+        int set = Der.headerLength(atv) + atv;
+        int seq = Der.headerLength(set) + set;
+        Der der = new Der(Der.headerLength(seq) + seq);
+        der.header(0x30, seq).header(0x31, set).header(0x30, atv).put(CN_OID).header(0x0C, value.length).put(value);
+        return der.toByteArray();
+    }
+
+    private static boolean isPlain(String cn) {
+        if (cn.isEmpty()) return false;
+        for (int i = 0; i < cn.length(); i++) {
+            char ch = cn.charAt(i);
+            boolean ok = (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9')
+                || ch == '-' || ch == '_' || ch == '.' || ch == '@' || ch == ':' || ch == '/';
+            if (!ok) return false;
+        }
+        return true;
+    }
+
+    /** SEQUENCE из двух Time; пересобирается не чаще раза в секунду. */
+    private byte[] validityAt(long nowMillis) {
+        long second = Math.floorDiv(nowMillis, 1000);
+        Validity v = validity;
+        if (v.second != second) {
+            long base = second * 1000;
+            byte[] notBefore = time(base - CertificateUtils.BACKDATE_MS);
+            byte[] notAfter = time(base + CertificateUtils.VALIDITY_MS);
+            Der der = new Der(2 + notBefore.length + notAfter.length);
+            der.header(0x30, notBefore.length + notAfter.length).put(notBefore).put(notAfter);
+            v = new Validity(second, der.toByteArray());
+            validity = v;
+        }
+        return v.der;
+    }
+
+    /** Как org.bouncycastle.asn1.x509.Time: UTCTime для 1950-2049, иначе GeneralizedTime, точность - секунда. */
+    private static byte[] time(long millis) {
+        LocalDateTime t = LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), 0, ZoneOffset.UTC);
+        boolean utc = t.getYear() >= 1950 && t.getYear() <= 2049;
+        String text = (utc ? two(t.getYear() % 100) : String.format("%04d", t.getYear()))
+            + two(t.getMonthValue()) + two(t.getDayOfMonth()) + two(t.getHour()) + two(t.getMinute())
+            + two(t.getSecond()) + "Z";
+        byte[] value = text.getBytes(StandardCharsets.US_ASCII);
+        Der der = new Der(2 + value.length);
+        der.header(utc ? 0x17 : 0x18, value.length).put(value);
+        return der.toByteArray();
+    }
+
+    private static String two(int v) {
+        return v < 10 ? "0" + v : Integer.toString(v);
+    }
+
+    private static AlgorithmIdentifier algorithmIdentifier(String signatureAlgorithm) {
+        return switch (signatureAlgorithm) {
+            case "SHA256withECDSA" -> new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA256);
+            case "Ed25519" -> new AlgorithmIdentifier(EdECObjectIdentifiers.id_Ed25519);
+            default -> new AlgorithmIdentifier(PKCSObjectIdentifiers.sha256WithRSAEncryption, DERNull.INSTANCE);
+        };
+    }
+
+    private Signer newSigner() {
+        try {
+            Signature signature = backend.newSignature(signatureAlgorithm);
+            signature.initSign(issuerKey);
+            return new Signer(signature, new SecureRandom());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot initialise " + signatureAlgorithm + " signer", e);
+        }
+    }
+
+    /**
+     * Собирает тестовый сертификат обоими способами с одними серийным номером и датами.
+     * Подпись ECDSA случайна, поэтому для неё сравнивается только TBSCertificate.
+     */
+    private boolean selfCheck() {
+        try {
+            long now = System.currentTimeMillis() / 1000 * 1000;
+            BigInteger serial = new BigInteger(160, new SecureRandom());
+            PublicKey pub = CertificateUtils.generateKeyPair(KeySpec.EC_P256).getPublic();
+            byte[] expected = CertificateUtils.buildCertificate("self-check", pub, issuerKey, issuerDN, serial,
+                new Date(now - CertificateUtils.BACKDATE_MS), new Date(now + CertificateUtils.VALIDITY_MS)).getEncoded();
+            byte[] actual = assemble(signers.get().signature, "self-check", pub, serial, validityAt(now));
+            boolean same = "SHA256withECDSA".equals(signatureAlgorithm)
+                ? Arrays.equals(tbsOf(expected), tbsOf(actual))
+                : Arrays.equals(expected, actual);
+            if (!same) logger.warn("Certificate engine output differs from BouncyCastle; using the BouncyCastle builder");
+            return same;
+        } catch (Exception e) {
+            logger.warn("Certificate engine self-check failed ({}); using the BouncyCastle builder", e.toString());
+            return false;
+        }
+    }
+
+    private static byte[] tbsOf(byte[] cert) {
+        int offset = Der.headerLength(cert, 0);
+        int length = Der.headerLength(cert, offset) + Der.contentLength(cert, offset);
+        return Arrays.copyOfRange(cert, offset, offset + length);
+    }
+
+    private record Signer(Signature signature, SecureRandom random) {}
+
+    private record Validity(long second, byte[] der) {}
+
+    /** Минимальный писатель DER в массив фиксированного размера. */
+    private static final class Der {
+        final byte[] bytes;
+        int length;
+
+        Der(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        Der header(int tag, int contentLength) {
+            bytes[length++] = (byte) tag;
+            if (contentLength < 0x80) {
+                bytes[length++] = (byte) contentLength;
+            } else {
+                int octets = (39 - Integer.numberOfLeadingZeros(contentLength)) / 8;
+                bytes[length++] = (byte) (0x80 | octets);
+                for (int i = octets - 1; i >= 0; i--) bytes[length++] = (byte) (contentLength >>> (8 * i));
+            }
+            return this;
+        }
+
+        Der put(byte[] b) {
+            return put(b, b.length);
+        }
+
+        Der put(byte[] b, int len) {
+            System.arraycopy(b, 0, bytes, length, len);
+            length += len;
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+        }
+
+        /** Размер тега и длины для содержимого contentLength байт. */
+        static int headerLength(int contentLength) {
+            if (contentLength < 0x80) return 2;
+            return 2 + (39 - Integer.numberOfLeadingZeros(contentLength)) / 8;
+        }
+
+        static int headerLength(byte[] der, int offset) {
+            int first = der[offset + 1] & 0xFF;
+            return first < 0x80 ? 2 : 2 + (first & 0x7F);
+        }
+
+        static int contentLength(byte[] der, int offset) {
+            int first = der[offset + 1] & 0xFF;
+            if (first < 0x80) return first;
+            int len = 0;
+            for (int i = 0; i < (first & 0x7F); i++) len = (len << 8) | (der[offset + 2 + i] & 0xFF);
+            return len;
+        }
+    }
+}
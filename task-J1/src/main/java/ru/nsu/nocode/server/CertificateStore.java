@@ -0,0 +1,304 @@
+package ru.nsu.nocode.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Хранилище выданных пар на диске: журнал сегментов, которые только дописываются
+ * и целиком отображены в память через FileChannel.map. Чтение возвращает срезы
+ * отображённого буфера без копирования в кучу.
+ *
+ * Запись: [magic:i32][crc32c:i32][len:i32][issuedAt:i64][nameLen:u16][privLen:i32][certLen:i32][name][priv][cert]
+ * CRC считается по всему, что идёт после поля crc. При открытии сегменты сканируются по порядку,
+ * индекс имя -> (сегмент, смещение) строится заново; сканирование сегмента останавливается
+ * на первой повреждённой или недописанной записи, с этого места продолжается запись.
+ * Сегменты, где больше половины байт занято перезаписанными или просроченными записями, переписываются
+ * в активный и удаляются; сегмент, где просрочена даже самая новая запись, просто удаляется.
+ */
+public class CertificateStore implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(CertificateStore.class);
+    private static final int MAGIC = 0x43455254;
+    private static final int HEADER = 4 + 4 + 4 + 8 + 2 + 4 + 4;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    public record StoredPair(ByteBuffer priv, ByteBuffer cert, long issuedAt) {}
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long maxAgeMillis;
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<>();
+    private final Object appendLock = new Object();
+    private final AtomicLong compactedSegments = new AtomicLong();
+    private Segment active;
+
+    public CertificateStore(Path dir, int segmentBytes, long maxAgeMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        Files.createDirectories(dir);
+        recover();
+    }
+
+    public StoredPair get(String name) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Long loc = index.get(name);
+            if (loc == null) return null;
+            Segment seg = segments.get(segmentOf(loc));
+            if (seg == null) continue; // сегмент только что ушёл в компакцию, адрес уже обновлён
+            ByteBuffer map = seg.map;
+            int off = offsetOf(loc);
+            long issuedAt = map.getLong(off + 12);
+            if (System.currentTimeMillis() - issuedAt > maxAgeMillis) return null;
+            int nameLen = map.getShort(off + 20) & 0xFFFF;
+            int privLen = map.getInt(off + 22);
+            int certLen = map.getInt(off + 26);
+            int body = off + HEADER + nameLen;
+            return new StoredPair(
+                map.slice(body, privLen).asReadOnlyBuffer(),
+                map.slice(body + privLen, certLen).asReadOnlyBuffer(),
+                issuedAt);
+        }
+        return null;
+    }
+
+    public void put(String name, ByteBuffer priv, ByteBuffer cert, long issuedAt) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+        int len = HEADER + nameBytes.length + priv.remaining() + cert.remaining();
+        if (len > segmentBytes) throw new IOException("Record of " + len + " bytes does not fit a segment");
+        synchronized (appendLock) {
+            if (segmentBytes - active.writePos < len) roll();
+            Segment seg = active;
+            int off = seg.writePos;
+            ByteBuffer rec = seg.map.slice(off, len);
+            rec.putInt(0).putInt(0).putInt(len).putLong(issuedAt)
+                .putShort((short) nameBytes.length).putInt(priv.remaining()).putInt(cert.remaining())
+                .put(nameBytes).put(priv.duplicate()).put(cert.duplicate());
+            CRC32C crc = new CRC32C();
+            crc.update(rec.position(8));
+            seg.map.putInt(off + 4, (int) crc.getValue());
+            // magic пишется последним: недописанная запись при восстановлении не пройдёт проверку
+            seg.map.putInt(off, MAGIC);
+            seg.writePos = off + len;
+            seg.noteIssued(issuedAt);
+            Long old = index.put(name, location(seg.id, off));
+            if (old != null) markDead(old);
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    public long compactedSegmentCount() {
+        return compactedSegments.get();
+    }
+
+    /** Сбрасывает изменения на диск; вызывается периодически и при закрытии. */
+    public void sync() {
+        for (Segment seg : segments.values()) {
+            seg.map.force();
+        }
+    }
+
+    /**
+     * Переписывает живые записи из запечатанных сегментов, где больше половины байт перезаписано или
+     * просрочено. Просроченные записи get() всё равно не отдаёт, поэтому при уникальных именах, которые
+     * никогда не перезаписываются, сегменты освобождаются по возрасту.
+     */
+    public void compact() throws IOException {
+        for (Segment seg : new ArrayList<>(segments.values())) {
+            if (seg == active) continue;
+            long now = System.currentTimeMillis();
+            boolean allExpired = now - seg.newestIssuedAt > maxAgeMillis;
+            // Перезаписанная и к тому же просроченная запись считается дважды: оценка сверху
+            if (!allExpired && (seg.deadBytes.get() + expiredBytes(seg, now)) * 2 < seg.writePos) continue;
+            int moved = 0;
+            for (int off = 0; off < seg.writePos; ) {
+                int len = seg.map.getInt(off + 8);
+                String name = readName(seg.map, off);
+                long loc = location(seg.id, off);
+                boolean expired = now - seg.map.getLong(off + 12) > maxAgeMillis;
+                // Проверка и перенос под той же блокировкой, что и put: иначе копия старой записи
+                // могла бы лечь в журнал после более новой и победить её при восстановлении
+                synchronized (appendLock) {
+                    Long current = index.get(name);
+                    if (current != null && current == loc) {
+                        if (expired) {
+                            index.remove(name, loc);
+                        } else {
+                            if (segmentBytes - active.writePos < len) roll();
+                            int dst = active.writePos;
+                            active.map.put(dst, seg.map, off, len);
+                            active.writePos = dst + len;
+                            active.noteIssued(seg.map.getLong(off + 12));
+                            index.put(name, location(active.id, dst));
+                            moved++;
+                        }
+                    }
+                }
+                off += len;
+            }
+            synchronized (appendLock) {
+                active.map.force();
+            }
+            segments.remove(seg.id);
+            seg.channel.close();
+            Files.deleteIfExists(seg.path);
+            compactedSegments.incrementAndGet();
+            logger.info("Compacted store segment {}: {} live records moved", seg.id, moved);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            sync();
+            for (Segment seg : segments.values()) {
+                seg.channel.close();
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        long started = System.nanoTime();
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path p : ds) {
+                String f = p.getFileName().toString();
+                ids.add(Integer.parseInt(f.substring(SEGMENT_PREFIX.length(), f.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        ids.sort(null);
+        long records = 0, torn = 0;
+        CRC32C crc = new CRC32C();
+        for (int id : ids) {
+            Segment seg = openSegment(id);
+            segments.put(id, seg);
+            MappedByteBuffer map = seg.map;
+            int off = 0;
+            while (off + HEADER <= segmentBytes && map.getInt(off) == MAGIC) {
+                int len = map.getInt(off + 8);
+                if (len < HEADER || off + len > segmentBytes) break;
+                crc.reset();
+                crc.update(map.slice(off + 8, len - 8));
+                if ((int) crc.getValue() != map.getInt(off + 4)) break;
+                Long old = index.put(readName(map, off), location(id, off));
+                if (old != null) markDead(old);
+                seg.noteIssued(map.getLong(off + 12));
+                records++;
+                off += len;
+            }
+            if (!isZero(map, off, Math.min(segmentBytes, off + HEADER))) {
+                torn++;
+                logger.warn("Store segment {} has a damaged record at offset {}, truncating", id, off);
+                map.put(off, new byte[segmentBytes - off]);
+            }
+            seg.writePos = off;
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (active == null) roll();
+        logger.info("Certificate store {}: {} names from {} records in {} segment(s), {} damaged tail(s), {} ms",
+            dir, index.size(), records, segments.size(), torn, (System.nanoTime() - started) / 1_000_000);
+    }
+
+    private void roll() throws IOException {
+        int id = active == null ? 0 : active.id + 1;
+        if (active != null) active.map.force();
+        Segment seg = openSegment(id);
+        segments.put(id, seg);
+        active = seg;
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Path path = dir.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        return new Segment(id, path, ch, map);
+    }
+
+    /** Байты записей запечатанного сегмента старше maxAgeMillis; читаются только заголовки. */
+    private long expiredBytes(Segment seg, long now) {
+        long expired = 0;
+        for (int off = 0; off < seg.writePos; ) {
+            int len = seg.map.getInt(off + 8);
+            if (now - seg.map.getLong(off + 12) > maxAgeMillis) expired += len;
+            off += len;
+        }
+        return expired;
+    }
+
+    private void markDead(long loc) {
+        Segment seg = segments.get(segmentOf(loc));
+        if (seg != null) seg.deadBytes.addAndGet(seg.map.getInt(offsetOf(loc) + 8));
+    }
+
+    private static boolean isZero(ByteBuffer map, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (map.get(i) != 0) return false;
+        }
+        return true;
+    }
+
+    private static String readName(ByteBuffer map, int off) {
+        int nameLen = map.getShort(off + 20) & 0xFFFF;
+        byte[] name = new byte[nameLen];
+        map.get(off + HEADER, name);
+        return new String(name, StandardCharsets.US_ASCII);
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int segmentOf(long loc) {
+        return (int) (loc >>> 32);
+    }
+
+    private static int offsetOf(long loc) {
+        return (int) loc;
+    }
+
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        final AtomicLong deadBytes = new AtomicLong();
+        volatile int writePos;
+        // issuedAt самой новой записи; пишется под appendLock (или при восстановлении)
+        volatile long newestIssuedAt;
+
+        Segment(int id, Path path, FileChannel channel, MappedByteBuffer map) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.map = map;
+        }
+
+        void noteIssued(long issuedAt) {
+            if (issuedAt > newestIssuedAt) newestIssuedAt = issuedAt;
+        }
+    }
+}
@@ -8,6 +8,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.*;
 import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
 import java.util.Date;
 
 import org.bouncycastle.asn1.x500.X500Name;
@@ -19,8 +20,12 @@ import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import ru.nsu.nocode.protocol.KeySpec;
 
 public class CertificateUtils {
+    static final long BACKDATE_MS = 60_000;
+    static final long VALIDITY_MS = 365L * 24 * 3600 * 1000;
+
     static {
         if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
             Security.addProvider(new BouncyCastleProvider());
@@ -40,19 +45,43 @@ public class CertificateUtils {
     }
 
     public static X509Certificate buildCertificate(String cn, PublicKey pub, PrivateKey issuerKey, String issuerDN) throws Exception {
+        long now = System.currentTimeMillis();
+        return buildCertificate(cn, pub, issuerKey, issuerDN, new BigInteger(160, new SecureRandom()),
+            new Date(now - BACKDATE_MS), new Date(now + VALIDITY_MS));
+    }
+
+    /** Эталонная сборка через BouncyCastle; с ней CertificateEngine сверяется при старте. */
+    static X509Certificate buildCertificate(String cn, PublicKey pub, PrivateKey issuerKey, String issuerDN,
+                                            BigInteger serial, Date notBefore, Date notAfter) throws Exception {
         X500Name issuer = new X500Name(issuerDN);
         X500Name subject = new X500Name("CN=" + cn);
-        BigInteger serial = new BigInteger(160, new SecureRandom());
-        Date notBefore = new Date(System.currentTimeMillis() - 60000);
-        Date notAfter = new Date(System.currentTimeMillis() + 365L * 24 * 3600 * 1000);
 
         var builder = new JcaX509v3CertificateBuilder(issuer, serial, notBefore, notAfter, subject, pub);
-        ContentSigner signer = new JcaContentSignerBuilder("SHA256withRSA").setProvider("BC").build(issuerKey);
+        ContentSigner signer = new JcaContentSignerBuilder(signatureAlgorithm(issuerKey)).setProvider("BC").build(issuerKey);
 
         return new JcaX509CertificateConverter().setProvider("BC")
                 .getCertificate(builder.build(signer));
     }
 
+    /** Подпись выбирается по ключу издателя: алгоритм выдаваемого ключа на неё не влияет. */
+    static String signatureAlgorithm(PrivateKey issuerKey) {
+        return switch (issuerKey.getAlgorithm()) {
+            case "EC", "ECDSA" -> "SHA256withECDSA";
+            case "Ed25519", "EdDSA" -> "Ed25519";
+            default -> "SHA256withRSA";
+        };
+    }
+
+    public static KeyPair generateKeyPair(KeySpec spec) throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance(spec.algorithm().jcaName);
+        switch (spec.algorithm()) {
+            case RSA -> gen.initialize(spec.size());
+            case EC -> gen.initialize(new ECGenParameterSpec("secp" + spec.size() + "r1"));
+            case ED25519 -> { }
+        }
+        return gen.generateKeyPair();
+    }
+
     public static KeyPair generateRSAKeyPair(int bits) throws Exception {
         KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
         gen.initialize(bits);
@@ -3,22 +3,93 @@ package ru.nsu.nocode.server;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ClientConnection {
     public final SocketChannel channel;
-    public final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
-    public volatile ByteBuffer writeBuffer;
+    // Берётся из пула реактора на время разбора и возвращается, когда неразобранных байт не осталось
+    ByteBuffer readBuffer;
+    public final ConcurrentLinkedQueue<ByteBuffer[]> writeQueue = new ConcurrentLinkedQueue<>();
     public String requestedName;
     public final AtomicBoolean closed = new AtomicBoolean(false);
 
+    final Reactor reactor;
+    // -1 - версия ещё не определена, 0 - старый одноразовый формат
+    int protocolVersion = -1;
+    boolean inputClosed;
+    final AtomicInteger inFlight = new AtomicInteger();
+    // Готовые ответы в writeQueue и currentWrite
+    final AtomicInteger unflushed = new AtomicInteger();
+    // Чтение снято, пока ответов на принятые запросы не меньше max-pipelined; трогает только поток реактора
+    boolean readPaused;
+    TimingWheel.Timeout readDeadline;
+    // Для постоянного соединения - последнее чтение или дописанный до конца ответ,
+    // для старого формата - время подключения
+    long lastActiveNanos;
+    TimingWheel.Timeout writeDeadline;
+    // Ответ, который уже начали писать в сокет; трогает только поток реактора
+    ByteBuffer[] currentWrite;
+    // Для метрик: момент регистрации (0 после первого запроса) и начало текущей очереди записи
+    long acceptedNanos;
+    long writeSince;
+    // События JFR ответов в очереди записи, по массиву буферов (массивы сравниваются по ссылке).
+    // Пока запись JFR не идёт, пуста: таблица у ConcurrentHashMap выделяется при первой вставке
+    final ConcurrentHashMap<ByteBuffer[], ServerEvents.ResponseFlushed> flushEvents = new ConcurrentHashMap<>();
+    // Адрес клиента для FairScheduler; определяется при первом запросе
+    private String address;
+
     public ClientConnection(SocketChannel ch) {
+        this(ch, null);
+    }
+
+    ClientConnection(SocketChannel ch, Reactor reactor) {
         this.channel = ch;
+        this.reactor = reactor;
+    }
+
+    String address() {
+        if (address == null) address = FairScheduler.addressOf(channel);
+        return address;
+    }
+
+    public boolean isPersistent() {
+        return protocolVersion > 0;
+    }
+
+    void send(ByteBuffer... response) {
+        unflushed.incrementAndGet();
+        writeQueue.add(response);
+        inFlight.decrementAndGet();
+        reactor.enqueueWrite(this);
+    }
+
+    /** Реактор дописал response в сокет: закрывает его событие JFR, если оно было. */
+    void flushed(ByteBuffer[] response) {
+        if (flushEvents.isEmpty()) return;
+        ServerEvents.ResponseFlushed e = flushEvents.remove(response);
+        if (e != null) {
+            e.end();
+            if (e.shouldCommit()) e.commit();
+        }
+    }
+
+    /** Принятые запросы, ответ на которые ещё не ушёл в сокет целиком. */
+    int backlog() {
+        return inFlight.get() + unflushed.get();
+    }
+
+    boolean isDrained() {
+        return inFlight.get() == 0 && writeQueue.isEmpty() && currentWrite == null;
     }
 
-    public void close() {
+    public boolean close() {
         if (closed.compareAndSet(false, true)) {
             try { channel.close(); } catch (IOException ignored) {}
+            return true;
         }
+        return false;
     }
 }
@@ -0,0 +1,69 @@
+package ru.nsu.nocode.server;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Статический кластер из --cluster: кольцо владельцев имён и соединения с остальными узлами.
+ * Промах по чужому имени пересылается владельцу, поэтому каждое имя генерируется в кластере один раз.
+ */
+final class Cluster implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(Cluster.class);
+
+    private final List<String> members;
+    private final String self;
+    private final HashRing ring;
+    // null на месте этого узла
+    private final PeerClient[] peers;
+    // IP остальных узлов: только с них принимается флаг пересылки
+    private final Set<String> peerAddresses = new HashSet<>();
+
+    Cluster(List<String> members, String self, long timeoutMs) {
+        this.members = List.copyOf(members);
+        this.self = self;
+        this.ring = new HashRing(this.members);
+        this.peers = new PeerClient[members.size()];
+        for (int i = 0; i < peers.length; i++) {
+            if (members.get(i).equals(self)) continue;
+            peers[i] = new PeerClient(members.get(i), timeoutMs);
+            String host = members.get(i).substring(0, members.get(i).lastIndexOf(':'));
+            try {
+                for (InetAddress a : InetAddress.getAllByName(host)) peerAddresses.add(a.getHostAddress());
+            } catch (UnknownHostException e) {
+                logger.warn("Cannot resolve cluster member {}: forwarded requests from it will be treated as client requests", members.get(i));
+            }
+        }
+    }
+
+    /** Адрес клиента (FairScheduler.addressOf) принадлежит другому узлу кластера. */
+    boolean isPeerAddress(String address) {
+        return peerAddresses.contains(address);
+    }
+
+    /** Соединение с владельцем имени или null, если имя принадлежит этому узлу. */
+    PeerClient ownerOf(String name) {
+        return peers[ring.ownerOf(name)];
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    @Override
+    public void close() {
+        for (PeerClient p : peers) {
+            if (p != null) p.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return self + " of " + members;
+    }
+}
@@ -0,0 +1,166 @@
+package ru.nsu.nocode.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Делит генерацию между источниками запросов - адресами клиентов или тегами арендаторов.
+ *
+ * Очередь: у каждого источника своя FIFO, пул получает по одной задаче-"слоту" на каждую
+ * поставленную генерацию, а слот, дойдя до потока, берёт задачу у следующего источника по кругу.
+ * Порядок пула поэтому не важен: клиент, поставивший тысячу генераций, получает поток не чаще
+ * остальных, и генерация соседа ждёт не тысячу задач, а по одной от каждого активного источника.
+ *
+ * Норма: полосатые корзины токенов - rate новых генераций в секунду с запасом burst на источник.
+ * Корзины разложены по STRIPES полосам по хешу источника, у каждой полосы свой замок, так что
+ * потоки разных клиентов почти не встречаются. Полная корзина ничем не отличается от отсутствующей,
+ * поэтому при разрастании полосы такие корзины выбрасываются. rate == 0 - норма выключена.
+ */
+final class FairScheduler {
+    private static final int STRIPES = 64;
+    private static final int PRUNE_THRESHOLD = 1024;
+    /** Источник задач самого сервера (refresh-ahead) и вызовов без клиента. */
+    static final String INTERNAL = "";
+
+    private final Executor executor;
+    private final double ratePerNano;
+    private final double burst;
+    private final Stripe[] stripes;
+    private final LongAdder throttled = new LongAdder();
+
+    // Под замком this
+    private final HashMap<String, ArrayDeque<Runnable>> queues = new HashMap<>();
+    private final ArrayDeque<String> turn = new ArrayDeque<>();
+
+    FairScheduler(Executor executor, double ratePerSecond, int burst) {
+        this.executor = executor;
+        this.ratePerNano = ratePerSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.stripes = new Stripe[ratePerSecond > 0 ? STRIPES : 0];
+        for (int i = 0; i < stripes.length; i++) stripes[i] = new Stripe();
+    }
+
+    /**
+     * Списывает токен источника. Возвращает 0, если генерацию можно начинать, иначе через сколько
+     * миллисекунд (не меньше 1) в корзине появится токен.
+     */
+    long tryAcquire(String source) {
+        if (stripes.length == 0) return 0;
+        Stripe stripe = stripes[(source.hashCode() * 0x9E3779B9 >>> 16) & (STRIPES - 1)];
+        long now = System.nanoTime();
+        synchronized (stripe) {
+            Bucket b = stripe.buckets.get(source);
+            if (b == null) {
+                if (stripe.buckets.size() >= PRUNE_THRESHOLD) stripe.prune(now);
+                b = new Bucket(burst, now);
+                stripe.buckets.put(source, b);
+            } else {
+                b.refill(now);
+            }
+            if (b.tokens >= 1) {
+                b.tokens -= 1;
+                return 0;
+            }
+            throttled.increment();
+            return Math.max(1, (long) Math.ceil((1 - b.tokens) / ratePerNano / 1e6));
+        }
+    }
+
+    /** IP клиента без порта - источник по умолчанию; все клиенты сокета Unix - один источник "local". */
+    static String addressOf(SocketChannel channel) {
+        try {
+            SocketAddress remote = channel.getRemoteAddress();
+            if (remote instanceof InetSocketAddress a && a.getAddress() != null) {
+                return a.getAddress().getHostAddress();
+            }
+            if (remote instanceof UnixDomainSocketAddress) return "local";
+        } catch (IOException ignored) {
+        }
+        return "unknown";
+    }
+
+    /** Ставит генерацию источника в его очередь и занимает под неё место в пуле. */
+    void submit(String source, Runnable task) {
+        synchronized (this) {
+            ArrayDeque<Runnable> q = queues.get(source);
+            if (q == null) {
+                q = new ArrayDeque<>();
+                queues.put(source, q);
+                turn.addLast(source);
+            }
+            q.addLast(task);
+        }
+        executor.execute(this::runNext);
+    }
+
+    private void runNext() {
+        Runnable task;
+        synchronized (this) {
+            String source = turn.pollFirst();
+            if (source == null) return;
+            ArrayDeque<Runnable> q = queues.get(source);
+            task = q.pollFirst();
+            if (q.isEmpty()) {
+                queues.remove(source);
+            } else {
+                turn.addLast(source);
+            }
+        }
+        task.run();
+    }
+
+    /** Источники, у которых есть ждущие генерации. */
+    synchronized int activeSources() {
+        return queues.size();
+    }
+
+    /** Корзины, которые сейчас хранятся; 0, если норма выключена. */
+    int buckets() {
+        int n = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                n += s.buckets.size();
+            }
+        }
+        return n;
+    }
+
+    long throttledCount() {
+        return throttled.sum();
+    }
+
+    private final class Stripe {
+        final HashMap<String, Bucket> buckets = new HashMap<>();
+
+        void prune(long now) {
+            for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext(); ) {
+                Bucket b = it.next();
+                b.refill(now);
+                if (b.tokens >= burst) it.remove();
+            }
+        }
+    }
+
+    private final class Bucket {
+        double tokens;
+        long updated;
+
+        Bucket(double tokens, long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+
+        void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - updated) * ratePerNano);
+            updated = now;
+        }
+    }
+}
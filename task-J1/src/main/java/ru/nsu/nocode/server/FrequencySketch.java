@@ -0,0 +1,72 @@
+package ru.nsu.nocode.server;
+
+/**
+ * Count-Min sketch с 4-битными счётчиками для оценки частоты обращений к ключу.
+ * Когда число учтённых событий достигает sampleSize, все счётчики делятся пополам,
+ * чтобы старая популярность постепенно забывалась. Не потокобезопасен - вызывается под блокировкой кэша.
+ */
+class FrequencySketch {
+    private static final int MAX_COUNT = 15;
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedEntries) {
+        int counters = Integer.highestOneBit(Math.max(64, expectedEntries * 4) - 1) << 1;
+        this.table = new long[counters / 16];
+        this.mask = counters - 1;
+        this.sampleSize = Math.max(10, expectedEntries * 10);
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (long seed : SEEDS) {
+            min = Math.min(min, get(index(hash, seed)));
+        }
+        return min;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (long seed : SEEDS) {
+            int i = index(hash, seed);
+            if (get(i) < MAX_COUNT) {
+                table[i >>> 4] += 1L << ((i & 15) << 2);
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private int get(int i) {
+        return (int) ((table[i >>> 4] >>> ((i & 15) << 2)) & 0xF);
+    }
+
+    private int index(int hash, long seed) {
+        long h = (hash + seed) * seed;
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+        }
+        additions /= 2;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
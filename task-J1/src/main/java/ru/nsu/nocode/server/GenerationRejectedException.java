@@ -0,0 +1,22 @@
+package ru.nsu.nocode.server;
+
+/**
+ * Промах кэша не принят в очередь генерации, потому что она заполнена. Клиент получает
+ * STATUS_RETRY_LATER с подсказкой, через сколько повторить. Без стека: под перегрузкой их много.
+ */
+public class GenerationRejectedException extends Exception {
+    private final int retryAfterMs;
+
+    public GenerationRejectedException(int retryAfterMs) {
+        this("Generation queue is full, retry after " + retryAfterMs + " ms", retryAfterMs);
+    }
+
+    protected GenerationRejectedException(String message, int retryAfterMs) {
+        super(message, null, false, false);
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    public int retryAfterMs() {
+        return retryAfterMs;
+    }
+}
@@ -0,0 +1,11 @@
+package ru.nsu.nocode.server;
+
+/**
+ * Промах кэша не принят, потому что его источник - адрес клиента или тег арендатора - исчерпал
+ * норму новых генераций. Клиент получает STATUS_THROTTLED с подсказкой, когда появится токен.
+ */
+public class GenerationThrottledException extends GenerationRejectedException {
+    public GenerationThrottledException(String source, int retryAfterMs) {
+        super("Generation rate limit reached for " + source + ", retry after " + retryAfterMs + " ms", retryAfterMs);
+    }
+}
@@ -0,0 +1,58 @@
+package ru.nsu.nocode.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Консистентное хеширование имён по узлам кластера. Каждый узел занимает VIRTUAL_NODES точек
+ * на кольце 64-битных хешей, имя принадлежит узлу первой точки не меньше хеша имени. Кольцо
+ * зависит только от списка адресов, поэтому у всех узлов с одинаковым --cluster оно одинаковое,
+ * а при добавлении узла переезжает примерно 1/N имён.
+ */
+final class HashRing {
+    private static final int VIRTUAL_NODES = 160;
+
+    private final long[] points;
+    private final int[] owners;
+
+    HashRing(List<String> members) {
+        int n = members.size() * VIRTUAL_NODES;
+        long[][] pairs = new long[n][];
+        for (int m = 0; m < members.size(); m++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                pairs[m * VIRTUAL_NODES + v] = new long[] { hash(members.get(m) + "#" + v), m };
+            }
+        }
+        // При совпадении хешей (практически не бывает) порядок задаёт номер узла - тоже одинаково везде
+        Arrays.sort(pairs, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        points = new long[n];
+        owners = new int[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = pairs[i][0];
+            owners[i] = (int) pairs[i][1];
+        }
+    }
+
+    /** Номер узла-владельца в исходном списке. */
+    int ownerOf(String name) {
+        int i = Arrays.binarySearch(points, hash(name));
+        if (i < 0) i = -i - 1;
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /** FNV-1a по UTF-8 с финальным перемешиванием из MurmurHash3, чтобы соседние имена расходились по кольцу. */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,78 @@
+package ru.nsu.nocode.server;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.EnumSet;
+import java.util.Set;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import ru.nsu.nocode.protocol.KeyAlgorithm;
+import ru.nsu.nocode.protocol.KeySpec;
+
+/** KeyBackend поверх одного провайдера JCA: SunRsaSign, SunEC или BouncyCastle. */
+public final class JcaKeyBackend implements KeyBackend {
+    private final Provider provider;
+    private final Set<KeyAlgorithm> algorithms;
+
+    private JcaKeyBackend(Provider provider, Set<KeyAlgorithm> algorithms) {
+        this.provider = provider;
+        this.algorithms = algorithms;
+    }
+
+    /** RSA из JDK; null, если провайдера нет в этой JVM. */
+    public static JcaKeyBackend sunRsaSign() {
+        return of("SunRsaSign", EnumSet.of(KeyAlgorithm.RSA));
+    }
+
+    /** EC и Ed25519 из JDK; null, если провайдера нет в этой JVM. */
+    public static JcaKeyBackend sunEC() {
+        return of("SunEC", EnumSet.of(KeyAlgorithm.EC, KeyAlgorithm.ED25519));
+    }
+
+    public static JcaKeyBackend bouncyCastle() {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        return of(BouncyCastleProvider.PROVIDER_NAME, EnumSet.allOf(KeyAlgorithm.class));
+    }
+
+    private static JcaKeyBackend of(String providerName, Set<KeyAlgorithm> algorithms) {
+        Provider provider = Security.getProvider(providerName);
+        return provider != null ? new JcaKeyBackend(provider, algorithms) : null;
+    }
+
+    @Override
+    public String name() {
+        return provider.getName();
+    }
+
+    @Override
+    public boolean supports(KeyAlgorithm algorithm) {
+        return algorithms.contains(algorithm);
+    }
+
+    @Override
+    public KeyPair generateKeyPair(KeySpec spec) throws GeneralSecurityException {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance(spec.algorithm().jcaName, provider);
+        switch (spec.algorithm()) {
+            case RSA -> gen.initialize(spec.size());
+            case EC -> gen.initialize(new ECGenParameterSpec("secp" + spec.size() + "r1"));
+            case ED25519 -> { }
+        }
+        return gen.generateKeyPair();
+    }
+
+    @Override
+    public Signature newSignature(String algorithm) throws GeneralSecurityException {
+        return Signature.getInstance(algorithm, provider);
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+}
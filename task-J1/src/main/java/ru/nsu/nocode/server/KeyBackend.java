@@ -0,0 +1,24 @@
+package ru.nsu.nocode.server;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.Signature;
+import ru.nsu.nocode.protocol.KeyAlgorithm;
+import ru.nsu.nocode.protocol.KeySpec;
+
+/**
+ * Реализация генерации ключей и подписи сертификатов. Сервер выбирает её отдельно для каждого
+ * семейства ключей и для подписи - калибровкой при старте или по --key-backend (см. KeyBackends).
+ * Реализации должны быть потокобезопасны: их вызывают все потоки пула генерации и резервуара.
+ */
+public interface KeyBackend {
+    /** Имя для --key-backend, логов и метрик. */
+    String name();
+
+    boolean supports(KeyAlgorithm algorithm);
+
+    KeyPair generateKeyPair(KeySpec spec) throws GeneralSecurityException;
+
+    /** Новый объект подписи; algorithm - имя JCA, например SHA256withRSA. */
+    Signature newSignature(String algorithm) throws GeneralSecurityException;
+}
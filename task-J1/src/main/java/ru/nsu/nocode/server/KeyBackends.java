@@ -0,0 +1,279 @@
+package ru.nsu.nocode.server;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.nsu.nocode.protocol.KeyAlgorithm;
+import ru.nsu.nocode.protocol.KeySpec;
+
+/**
+ * Какой KeyBackend генерирует ключи каждого семейства и какой подписывает сертификаты.
+ *
+ * При старте select() коротко меряет все доступные реализации: для каждого семейства - генерацию
+ * ключа (RSA - размера по умолчанию сервера, если он RSA, иначе 2048), для подписи - подпись
+ * блока размером с типичный TBSCertificate ключом издателя. Реализации меряются по очереди раундами,
+ * чтобы прогрев JIT не достался одной из них; каждая получает одну разогревочную операцию, не меньше
+ * calibrationMs времени и не меньше MIN_SAMPLES операций: за 200 мс успевают лишь 2-4 генерации RSA,
+ * а их время сильно скачет из-за случайного поиска простых. Поэтому скорость считается по медиане
+ * времени операции, а не по среднему. Побеждает наибольшее число операций в секунду. Выбор можно закрепить
+ * через --key-backend (rsa=BC,ec=SunEC,ed25519=SunEC,sign=SunRsaSign) - закреплённое не меряется.
+ * При calibrationMs == 0 берётся первая подходящая реализация из available(). Выбранная реализация
+ * без замера всё равно один раз выполняет операцию, и сервер не стартует, если она не может её сделать
+ * (например, sign=SunRsaSign при ключе издателя EC).
+ */
+public final class KeyBackends {
+    private static final Logger logger = LoggerFactory.getLogger(KeyBackends.class);
+    private static final String SIGN = "sign";
+    private static final int SAMPLE_TBS_BYTES = 400;
+    private static final int MIN_SAMPLES = 10;
+
+    /**
+     * Замер одной реализации: opsPerSecond - по медиане из samples операций; opsPerSecond < 0 - не мерялась
+     * (закреплена или калибровка выключена).
+     */
+    public record Rate(String operation, String backend, double opsPerSecond, int samples, boolean selected) {}
+
+    private final EnumMap<KeyAlgorithm, KeyBackend> keygen;
+    private final KeyBackend signer;
+    private final List<Rate> rates;
+
+    private KeyBackends(EnumMap<KeyAlgorithm, KeyBackend> keygen, KeyBackend signer, List<Rate> rates) {
+        this.keygen = keygen;
+        this.signer = signer;
+        this.rates = List.copyOf(rates);
+    }
+
+    /** Реализации, чьи провайдеры есть в этой JVM; порядок - предпочтение без калибровки. */
+    public static List<KeyBackend> available() {
+        List<KeyBackend> list = new ArrayList<>();
+        for (KeyBackend b : new KeyBackend[] { JcaKeyBackend.sunRsaSign(), JcaKeyBackend.sunEC(), JcaKeyBackend.bouncyCastle() }) {
+            if (b != null) list.add(b);
+        }
+        return list;
+    }
+
+    /**
+     * Разбирает --key-backend: auto или список операция=реализация через запятую; операции - rsa, ec,
+     * ed25519 и sign. Бросает IllegalArgumentException на неизвестную операцию или реализацию.
+     */
+    public static Map<String, String> parsePins(String text) {
+        Map<String, String> pins = new LinkedHashMap<>();
+        if (text == null || text.isBlank() || text.equals("auto")) return pins;
+        for (String part : text.split(",")) {
+            int eq = part.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Expected operation=backend in key-backend, got: " + part);
+            String operation = part.substring(0, eq).trim().toLowerCase();
+            String backend = part.substring(eq + 1).trim();
+            if (!operation.equals(SIGN) && algorithmOf(operation) == null) {
+                throw new IllegalArgumentException("Unknown key-backend operation: " + operation + " (rsa, ec, ed25519, sign)");
+            }
+            if (find(backend) == null) {
+                throw new IllegalArgumentException("Unknown or unavailable key backend: " + backend);
+            }
+            pins.put(operation, backend);
+        }
+        return pins;
+    }
+
+    /** Выбор без замеров - первая подходящая реализация; подпись через BouncyCastle, как было до выбора. */
+    public static KeyBackends defaults() {
+        EnumMap<KeyAlgorithm, KeyBackend> keygen = new EnumMap<>(KeyAlgorithm.class);
+        for (KeyAlgorithm a : KeyAlgorithm.values()) keygen.put(a, first(a));
+        return new KeyBackends(keygen, JcaKeyBackend.bouncyCastle(), List.of());
+    }
+
+    public static KeyBackends select(String pinned, long calibrationMs, KeySpec defaultSpec, PrivateKey issuerKey) {
+        Map<String, String> pins = parsePins(pinned);
+        long budgetNanos = calibrationMs * 1_000_000L;
+        List<Rate> rates = new ArrayList<>();
+        EnumMap<KeyAlgorithm, KeyBackend> keygen = new EnumMap<>(KeyAlgorithm.class);
+        for (KeyAlgorithm a : KeyAlgorithm.values()) {
+            KeySpec spec = a == defaultSpec.algorithm() ? defaultSpec : switch (a) {
+                case RSA -> KeySpec.RSA_2048;
+                case EC -> KeySpec.EC_P256;
+                case ED25519 -> KeySpec.ED25519;
+            };
+            List<KeyBackend> candidates = candidates(label(a), pins.get(label(a)), b -> b.supports(a));
+            keygen.put(a, choose("keygen-" + label(a), candidates, budgetNanos, rates, b -> () -> b.generateKeyPair(spec)));
+        }
+
+        KeyAlgorithm issuerAlgorithm = algorithmOf(issuerKey.getAlgorithm());
+        String signatureAlgorithm = CertificateUtils.signatureAlgorithm(issuerKey);
+        byte[] tbs = new byte[SAMPLE_TBS_BYTES];
+        new SecureRandom().nextBytes(tbs);
+        List<KeyBackend> candidates = candidates(SIGN, pins.get(SIGN), b -> issuerAlgorithm == null || b.supports(issuerAlgorithm));
+        KeyBackend signer = choose(SIGN, candidates, budgetNanos, rates, b -> {
+            Signature signature = b.newSignature(signatureAlgorithm);
+            signature.initSign(issuerKey);
+            return () -> {
+                signature.update(tbs);
+                return signature.sign();
+            };
+        });
+        return new KeyBackends(keygen, signer, rates);
+    }
+
+    public KeyPair generateKeyPair(KeySpec spec) throws GeneralSecurityException {
+        return keygen.get(spec.algorithm()).generateKeyPair(spec);
+    }
+
+    public KeyBackend keygen(KeyAlgorithm algorithm) {
+        return keygen.get(algorithm);
+    }
+
+    public KeyBackend signer() {
+        return signer;
+    }
+
+    /** Замеры при выборе, в порядке операций; пусто, если калибровки не было. */
+    public List<Rate> rates() {
+        return rates;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        keygen.forEach((a, b) -> sb.append(label(a)).append('=').append(b.name()).append(','));
+        return sb.append(SIGN).append('=').append(signer.name()).toString();
+    }
+
+    /** Один шаг замера: подготовка (создание Signature и т.п.) не входит в измеряемое время. */
+    private interface Operation {
+        Step prepare(KeyBackend backend) throws GeneralSecurityException;
+    }
+
+    private interface Step {
+        Object run() throws GeneralSecurityException;
+    }
+
+    private interface Filter {
+        boolean accepts(KeyBackend backend);
+    }
+
+    private static List<KeyBackend> candidates(String operation, String pinned, Filter filter) {
+        if (pinned != null) {
+            KeyBackend b = find(pinned);
+            if (!filter.accepts(b)) throw new IllegalArgumentException("Key backend " + b.name() + " cannot do " + operation);
+            return List.of(b);
+        }
+        List<KeyBackend> list = new ArrayList<>();
+        for (KeyBackend b : available()) {
+            if (filter.accepts(b)) list.add(b);
+        }
+        return list;
+    }
+
+    private static KeyBackend choose(String operation, List<KeyBackend> candidates, long budgetNanos,
+                                     List<Rate> rates, Operation op) {
+        if (candidates.isEmpty()) throw new IllegalStateException("No key backend supports " + operation);
+        if (candidates.size() == 1 || budgetNanos <= 0) {
+            // Без замера - первая реализация, которая действительно выполнила операцию
+            for (KeyBackend chosen : candidates) {
+                try {
+                    op.prepare(chosen).run();
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    logger.warn("Key backend {} cannot do {}: {}", chosen.name(), operation, e.toString());
+                    continue;
+                }
+                logger.info("Key backend for {}: {} (not calibrated)", operation, chosen.name());
+                rates.add(new Rate(operation, chosen.name(), -1, 0, true));
+                return chosen;
+            }
+            throw new IllegalStateException("No key backend could do " + operation);
+        }
+        int n = candidates.size();
+        Step[] steps = new Step[n];
+        long[] spent = new long[n];
+        int[] done = new int[n];
+        long[][] times = new long[n][MIN_SAMPLES];
+        for (int i = 0; i < n; i++) {
+            try {
+                steps[i] = op.prepare(candidates.get(i));
+                steps[i].run();
+            } catch (GeneralSecurityException | RuntimeException e) {
+                logger.warn("Key backend {} cannot do {}: {}", candidates.get(i).name(), operation, e.toString());
+                steps[i] = null;
+            }
+        }
+        boolean more = true;
+        while (more) {
+            more = false;
+            for (int i = 0; i < n; i++) {
+                if (steps[i] == null || (spent[i] >= budgetNanos && done[i] >= MIN_SAMPLES)) continue;
+                long started = System.nanoTime();
+                try {
+                    steps[i].run();
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    logger.warn("Key backend {} failed during {} calibration: {}", candidates.get(i).name(), operation, e.toString());
+                    steps[i] = null;
+                    continue;
+                }
+                long took = System.nanoTime() - started;
+                spent[i] += took;
+                if (done[i] == times[i].length) times[i] = Arrays.copyOf(times[i], done[i] * 2);
+                times[i][done[i]++] = took;
+                more |= spent[i] < budgetNanos || done[i] < MIN_SAMPLES;
+            }
+        }
+        int best = -1;
+        double[] perSecond = new double[n];
+        for (int i = 0; i < n; i++) {
+            perSecond[i] = steps[i] != null && done[i] > 0 ? 1e9 / Math.max(1, median(times[i], done[i])) : 0;
+            if (steps[i] != null && (best < 0 || perSecond[i] > perSecond[best])) best = i;
+        }
+        if (best < 0) throw new IllegalStateException("No key backend could do " + operation);
+        StringBuilder measured = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            rates.add(new Rate(operation, candidates.get(i).name(), perSecond[i], done[i], i == best));
+            if (measured.length() > 0) measured.append(", ");
+            measured.append(candidates.get(i).name()).append(' ').append(String.format("%.1f", perSecond[i]))
+                .append(" ops/s (n=").append(done[i]).append(')');
+        }
+        logger.info("Key backend for {}: {} ({})", operation, candidates.get(best).name(), measured);
+        return candidates.get(best);
+    }
+
+    private static long median(long[] times, int count) {
+        long[] sorted = Arrays.copyOf(times, count);
+        Arrays.sort(sorted);
+        return count % 2 == 1 ? sorted[count / 2] : (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+    }
+
+    private static KeyBackend first(KeyAlgorithm algorithm) {
+        for (KeyBackend b : available()) {
+            if (b.supports(algorithm)) return b;
+        }
+        throw new IllegalStateException("No key backend supports " + algorithm);
+    }
+
+    private static KeyBackend find(String name) {
+        for (KeyBackend b : available()) {
+            if (b.name().equalsIgnoreCase(name)) return b;
+        }
+        return null;
+    }
+
+    private static String label(KeyAlgorithm algorithm) {
+        return algorithm.name().toLowerCase();
+    }
+
+    /** Семейство по метке операции или по getAlgorithm() ключа; null, если не распознано. */
+    private static KeyAlgorithm algorithmOf(String name) {
+        return switch (name.toLowerCase()) {
+            case "rsa" -> KeyAlgorithm.RSA;
+            case "ec", "ecdsa" -> KeyAlgorithm.EC;
+            case "ed25519", "eddsa" -> KeyAlgorithm.ED25519;
+            default -> null;
+        };
+    }
+}
@@ -0,0 +1,182 @@
+package ru.nsu.nocode.server;
+
+import java.security.KeyPair;
+import ru.nsu.nocode.protocol.KeySpec;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Резервуар заранее сгенерированных пар алгоритма по умолчанию. Фоновые потоки начинают пополнение,
+ * когда глубина падает ниже lowWatermark, и останавливаются на highWatermark. Пока foregroundBusy
+ * сообщает, что генерации клиентов ждут потока, пополнение стоит: приоритет потока HotSpot на Linux
+ * по умолчанию не соблюдает, и MIN_PRIORITY сам по себе процессор им не уступает.
+ * Пары других алгоритмов генерируются сразу: EC и Ed25519 занимают микросекунды, копить их незачем.
+ */
+public class KeyPairPool {
+    private static final Logger logger = LoggerFactory.getLogger(KeyPairPool.class);
+    // Как часто пополнение, уступившее генерациям клиентов, проверяет, не освободились ли они
+    private static final long YIELD_MS = 10;
+
+    private final KeySpec spec;
+    private final KeyBackends backends;
+    private final BooleanSupplier foregroundBusy;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final ArrayBlockingQueue<KeyPair> pairs;
+    private final Thread[] refillers;
+    private final Object signal = new Object();
+    private final LongAdder generated = new LongAdder();
+    private final LongAdder taken = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    private volatile boolean running = true;
+    private volatile boolean refilling = true;
+    private volatile long refillStartedAt = System.nanoTime();
+    private volatile long refillBusyNanos;
+
+    public KeyPairPool(KeySpec spec, int lowWatermark, int highWatermark, int threads) {
+        this(spec, lowWatermark, highWatermark, threads, KeyBackends.defaults());
+    }
+
+    public KeyPairPool(KeySpec spec, int lowWatermark, int highWatermark, int threads, KeyBackends backends) {
+        this(spec, lowWatermark, highWatermark, threads, backends, () -> false);
+    }
+
+    public KeyPairPool(KeySpec spec, int lowWatermark, int highWatermark, int threads, KeyBackends backends,
+                       BooleanSupplier foregroundBusy) {
+        this.spec = spec;
+        this.backends = backends;
+        this.foregroundBusy = foregroundBusy;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.pairs = new ArrayBlockingQueue<>(Math.max(1, highWatermark));
+        this.refillers = new Thread[highWatermark > 0 ? threads : 0];
+        for (int i = 0; i < refillers.length; i++) {
+            Thread t = new Thread(this::refillLoop);
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            t.setName("KeyPairPool-" + i);
+            refillers[i] = t;
+            t.start();
+        }
+        logger.info("Key pair pool: {}, watermarks {}..{}, {} refill threads",
+            spec, lowWatermark, highWatermark, refillers.length);
+    }
+
+    public KeySpec spec() {
+        return spec;
+    }
+
+    public KeyPair take(KeySpec requested) throws Exception {
+        if (!spec.equals(requested)) return backends.generateKeyPair(requested);
+        return take();
+    }
+
+    public KeyPair take() throws Exception {
+        KeyPair kp = pairs.poll();
+        if (kp != null) {
+            taken.increment();
+            if (pairs.size() < lowWatermark) startRefill();
+            return kp;
+        }
+        exhausted.increment();
+        startRefill();
+        return backends.generateKeyPair(spec);
+    }
+
+    public int depth() {
+        return pairs.size();
+    }
+
+    public int capacity() {
+        return highWatermark;
+    }
+
+    public long generatedCount() {
+        return generated.sum();
+    }
+
+    public long takenCount() {
+        return taken.sum();
+    }
+
+    public long exhaustedCount() {
+        return exhausted.sum();
+    }
+
+    /** Пар в секунду за то время, пока пул пополнялся. */
+    public double refillRate() {
+        long busy = refillBusyNanos;
+        if (refilling) busy += System.nanoTime() - refillStartedAt;
+        return busy == 0 ? 0.0 : generated.sum() * 1e9 / busy;
+    }
+
+    public void shutdown() {
+        running = false;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        for (Thread t : refillers) t.interrupt();
+        pairs.clear();
+    }
+
+    private void startRefill() {
+        if (refillers.length == 0 || refilling) return;
+        synchronized (signal) {
+            if (!refilling) {
+                refillStartedAt = System.nanoTime();
+                refilling = true;
+            }
+            signal.notifyAll();
+        }
+    }
+
+    private void stopRefill() {
+        synchronized (signal) {
+            if (refilling) {
+                refillBusyNanos += System.nanoTime() - refillStartedAt;
+                refilling = false;
+            }
+        }
+    }
+
+    private void awaitRefill() throws InterruptedException {
+        synchronized (signal) {
+            while (running && !refilling) {
+                if (pairs.size() < lowWatermark) {
+                    refillStartedAt = System.nanoTime();
+                    refilling = true;
+                    return;
+                }
+                signal.wait();
+            }
+        }
+    }
+
+    private void refillLoop() {
+        while (running) {
+            try {
+                awaitRefill();
+                if (!running) break;
+                if (foregroundBusy.getAsBoolean()) {
+                    Thread.sleep(YIELD_MS);
+                    continue;
+                }
+                KeyPair kp = backends.generateKeyPair(spec);
+                if (pairs.offer(kp)) {
+                    generated.increment();
+                }
+                if (pairs.size() >= highWatermark) {
+                    stopRefill();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                logger.error("Key pair pool refill failed: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -1,73 +1,111 @@
 package ru.nsu.nocode.server;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.*;
-import java.security.cert.X509Certificate;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import ru.nsu.nocode.metrics.MetricsHttpServer;
+import ru.nsu.nocode.metrics.ServerMetrics;
+import ru.nsu.nocode.protocol.KeyAlgorithm;
+import ru.nsu.nocode.protocol.KeySpec;
+import ru.nsu.nocode.protocol.Protocol;
+import ru.nsu.nocode.protocol.Request;
+import ru.nsu.nocode.protocol.ResponseFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class KeyServer {
     private static final Logger logger = LoggerFactory.getLogger(KeyServer.class);
-    private static final int MAX_NAME_LENGTH = 255;
-    private static final int MAX_CACHE_SIZE = 1000;
-    private static final long CACHE_TTL_MS = 300_000;
+    static final long CACHE_TTL_MS = 300_000;
+    // Очередь по умолчанию (50) переполняется уже при сотне одновременных подключений,
+    // и клиенты ждут повтора SYN по секунде и больше
+    private static final int ACCEPT_BACKLOG = 1024;
+    private static final int MAX_RETRY_AFTER_MS = 60_000;
+    static final int MIN_RSA_BITS = 2048;
 
     private final int port;
-    private final PrivateKey issuerKey;
-    private final String issuerDN;
-    private final Selector selector;
-    private final ServerSocketChannel serverChannel;
-    private final ExecutorService pool;
-    // Почитать устройство synchronizedMap
-    private final Map<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>() {
-        private boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
-            return size() > MAX_CACHE_SIZE;
-        }
-    };
-    private final ConcurrentLinkedQueue<ClientConnection> readyToWrite = new ConcurrentLinkedQueue<>();
+    private final KeyBackends backends;
+    private final CertificateEngine certificates;
+    private final KeySpec defaultKeySpec;
+    private final int maxRsaBits;
+    // TCP и/или сокет Unix; транспорт принимает подключения со всех
+    private final List<ServerSocketChannel> listeners;
+    private final Path unixSocket;
+    private final Transport transport;
+    private final AdaptiveExecutor pool;
+    private final FairScheduler scheduler;
+    private final boolean fairByTenant;
+    private final CertificateCache cache;
     private final AtomicBoolean running = new AtomicBoolean(true);
     private final AtomicInteger activeTasks = new AtomicInteger(0);
     private final AtomicInteger completedTasks = new AtomicInteger(0);
-    private final PoolMonitor poolMonitor;
+    private final AtomicInteger queuedTasks = new AtomicInteger(0);
+    private final LongAdder rejectedTasks = new LongAdder();
+    private final LongAdder forwardedTasks = new LongAdder();
+    private final LongAdder forwardFallbacks = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder failedEvictions = new LongAdder();
+    private final ConcurrentHashMap<CacheKey, CacheEntry> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger refreshing = new AtomicInteger();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
+    private final LongAdder refreshesDeferred = new LongAdder();
+    private final long refreshAheadMs;
+    private final int refreshMinFrequency;
+    private final int refreshMaxInFlight;
+    private final int queueLimit;
+    private final int retryAfterMs;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final MetricsHttpServer metricsServer;
+    private final KeyPairPool keyPairPool;
+    private final CertificateStore store;
+    private final ScheduledExecutorService storeMaintenance;
+    private final Cluster cluster;
 
     public void shutdown() {
         logger.info("Shutting down KeyServer...");
 
         running.set(false);
+        transport.close();
+        if (cluster != null) cluster.close();
 
-        if (selector != null && selector.isOpen()) {
-            selector.wakeup();
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                if (listener.isOpen()) {
+                    listener.close();
+                    logger.info("Server socket closed.");
+                }
+            } catch (IOException e) {
+                logger.error("Error closing server socket: {}", e.getMessage());
+            }
         }
-
-        try {
-            if (serverChannel != null && serverChannel.isOpen()) {
-                serverChannel.close();
-                logger.info("Server socket closed.");
+        if (unixSocket != null) {
+            try {
+                Files.deleteIfExists(unixSocket);
+            } catch (IOException e) {
+                logger.error("Error removing unix socket {}: {}", unixSocket, e.getMessage());
             }
-        } catch (IOException e) {
-            logger.error("Error closing server socket: {}", e.getMessage());
         }
 
-        try {
-            if (selector != null && selector.isOpen()) {
-                selector.close();
-                logger.info("Selector closed.");
-            }
-        } catch (IOException e) {
-            logger.error("Error closing selector: {}", e.getMessage());
+        if (metricsServer != null) {
+            metricsServer.close();
         }
 
-        if (poolMonitor != null) {
-            poolMonitor.stop();
+        if (keyPairPool != null) {
+            keyPairPool.shutdown();
+            logger.info("Key pair pool stopped. Taken: {}, ran dry: {} times",
+                keyPairPool.takenCount(), keyPairPool.exhaustedCount());
         }
 
         if (pool != null && !pool.isShutdown()) {
@@ -85,18 +123,106 @@ public class KeyServer {
             logger.info("Generator thread pool stopped. Completed tasks: {}", completedTasks.get());
         }
 
+        if (store != null) {
+            storeMaintenance.shutdownNow();
+            try {
+                store.close();
+                logger.info("Certificate store closed: {} names", store.size());
+            } catch (IOException e) {
+                logger.error("Error closing certificate store: {}", e.getMessage());
+            }
+        }
+
+        logger.info("Connections closed on deadline - read: {}, write: {}", getReadTimeouts(), getWriteTimeouts());
         logger.info("KeyServer stopped successfully.");
     }
 
-    record PairPem(byte[] priv, byte[] cert) {}
+    /**
+     * Готовая пара. framed - прямой буфер только для чтения с полным телом ответа
+     * (статус и оба PEM с длинами); priv и cert - его срезы, отдельных копий нет.
+     * Тело в DER собирается вместе с PEM, чтобы ответ в DER не стоил base64 в потоке реактора,
+     * и входит в size() - вес записи в кэше.
+     */
+    static final class PairPem {
+        private final ByteBuffer priv;
+        private final ByteBuffer cert;
+        private final ByteBuffer framed;
+        private final ByteBuffer der;
+
+        private PairPem(ByteBuffer framed, int privLen, int certLen, ByteBuffer der) {
+            this.framed = framed;
+            this.priv = framed.slice(1 + 4, privLen);
+            this.cert = framed.slice(1 + 4 + privLen + 4, certLen);
+            this.der = der;
+        }
+
+        /** Пара в PEM из хранилища или от владельца имени; DER восстанавливается из неё один раз здесь. */
+        static PairPem of(ByteBuffer priv, ByteBuffer cert) {
+            ByteBuffer der = Protocol.okPayload(ByteBuffer.wrap(PemEncoder.decode(priv)), ByteBuffer.wrap(PemEncoder.decode(cert)));
+            return new PairPem(Protocol.okPayload(priv, cert), priv.remaining(), cert.remaining(), der);
+        }
+
+        /** Кодирует оба блока в PEM сразу в буфер ответа, DER берётся из блоков как есть. */
+        static PairPem encode(PemEncoder.Block priv, PemEncoder.Block cert) {
+            int privLen = priv.pemLength();
+            int certLen = cert.pemLength();
+            ByteBuffer bb = ByteBuffer.allocateDirect(1 + 4 + privLen + 4 + certLen);
+            bb.put(Protocol.STATUS_OK).putInt(privLen);
+            PemEncoder.encode(priv, bb).putInt(certLen);
+            PemEncoder.encode(cert, bb);
+            ByteBuffer der = Protocol.okPayload(ByteBuffer.wrap(priv.der()), ByteBuffer.wrap(cert.der()));
+            return new PairPem(bb.flip().asReadOnlyBuffer(), privLen, certLen, der);
+        }
+
+        ByteBuffer priv() {
+            return priv;
+        }
+
+        ByteBuffer cert() {
+            return cert;
+        }
+
+        ByteBuffer framed() {
+            return framed;
+        }
+
+        /** Тело ответа в нужном формате; в DER - то же содержимое, что внутри блоков PEM. */
+        ByteBuffer payload(ResponseFormat format) {
+            return format == ResponseFormat.PEM ? framed : der;
+        }
+
+        int size() {
+            return framed.capacity() + der.capacity();
+        }
+    }
+
+    /** Ключ кэша: одно имя с разными алгоритмами - разные пары. */
+    record CacheKey(String name, KeySpec spec) {
+        /** Ключ в хранилище на диске: алгоритм в имени записи, чтобы смена умолчания не отдала чужую пару. */
+        String storeKey() {
+            return spec.label() + "/" + name;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + spec + ")";
+        }
+    }
 
     static class CacheEntry {
         final CompletableFuture<PairPem> future;
         final long timestamp;
+        // Для фонового обновления - запись, которую эта заменит; иначе null
+        final CacheEntry replaces;
 
         CacheEntry(CompletableFuture<PairPem> future) {
+            this(future, null);
+        }
+
+        CacheEntry(CompletableFuture<PairPem> future, CacheEntry replaces) {
             this.future = future;
             this.timestamp = System.currentTimeMillis();
+            this.replaces = replaces;
         }
 
         boolean isExpired() {
@@ -105,193 +231,615 @@ public class KeyServer {
     }
 
     public KeyServer(int port, int genThreads, PrivateKey key, String issuerDN) throws IOException {
-        this.port = port;
-        this.issuerKey = key;
-        this.issuerDN = issuerDN;
-        this.selector = Selector.open();
-        this.serverChannel = ServerSocketChannel.open();
-        this.serverChannel.bind(new InetSocketAddress(port));
-        this.serverChannel.configureBlocking(false);
-        this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-        this.pool = Executors.newFixedThreadPool(genThreads);
-        this.poolMonitor = new PoolMonitor(pool, activeTasks, completedTasks, genThreads);
+        this(new ServerConfig(port, genThreads), key, issuerDN);
+    }
+
+    public KeyServer(ServerConfig config, PrivateKey key, String issuerDN) throws IOException {
+        config.validate();
+        this.defaultKeySpec = config.defaultKeySpec();
+        this.maxRsaBits = config.maxRsaBits;
+        this.backends = KeyBackends.select(config.keyBackend, config.backendCalibrationMs, defaultKeySpec, key);
+        this.certificates = new CertificateEngine(key, issuerDN, backends.signer());
+        List<ServerSocketChannel> listeners = new ArrayList<>();
+        if (config.port >= 0) {
+            ServerSocketChannel tcp = ServerSocketChannel.open();
+            tcp.bind(new InetSocketAddress(config.port), ACCEPT_BACKLOG);
+            listeners.add(tcp);
+            this.port = ((InetSocketAddress) tcp.getLocalAddress()).getPort();
+        } else {
+            this.port = -1;
+        }
+        this.unixSocket = config.unixSocket != null ? Path.of(config.unixSocket) : null;
+        if (unixSocket != null) {
+            try {
+                listeners.add(bindUnix(unixSocket));
+            } catch (IOException e) {
+                for (ServerSocketChannel l : listeners) l.close();
+                throw e;
+            }
+        }
+        this.listeners = List.copyOf(listeners);
+        this.transport = "virtual".equals(config.mode)
+            ? new VirtualThreadTransport(this, this.listeners, config)
+            : new ReactorTransport(this, this.listeners, config);
+        this.pool = new AdaptiveExecutor(config.genThreads, config.effectiveGenMinThreads(), config.effectiveGenMaxThreads(),
+            config.genIntervalMs, config.genTargetWaitMs, config.genCpuHigh, metrics.queueWait);
+        this.scheduler = new FairScheduler(pool, config.clientRate, config.clientBurst);
+        this.fairByTenant = "tenant".equals(config.fairBy);
+        this.queueLimit = config.queueLimit > 0 ? config.queueLimit : Integer.MAX_VALUE;
+        this.retryAfterMs = config.retryAfterMs;
+        this.refreshAheadMs = config.refreshAheadMs;
+        this.refreshMinFrequency = config.refreshMinFrequency;
+        this.refreshMaxInFlight = config.refreshMaxInFlight;
+        if (config.storeDir != null) {
+            this.store = new CertificateStore(Path.of(config.storeDir), config.storeSegmentMb << 20, config.storeMaxAgeMs);
+            this.storeMaintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "StoreMaintenance");
+                t.setDaemon(true);
+                return t;
+            });
+            storeMaintenance.scheduleWithFixedDelay(this::syncStore, 1, 1, TimeUnit.SECONDS);
+            storeMaintenance.scheduleWithFixedDelay(this::compactStore, 60, 60, TimeUnit.SECONDS);
+        } else {
+            this.store = null;
+            this.storeMaintenance = null;
+        }
+        this.cache = new CertificateCache(config.cacheEntries, config.cacheBytes, CACHE_TTL_MS);
+        this.keyPairPool = new KeyPairPool(defaultKeySpec, config.keyPoolLow, config.keyPoolHigh,
+            config.effectiveKeyPoolThreads(), backends, this::generationBusy);
+        this.cluster = config.cluster != null
+            ? new Cluster(config.clusterMembers(), config.clusterSelfAddress(), config.readTimeoutMs)
+            : null;
+        registerMetrics();
+        this.metricsServer = config.metricsPort >= 0 ? new MetricsHttpServer(config.metricsPort, metrics) : null;
+    }
+
+    private void registerMetrics() {
+        metrics.gauge("keyserver_connections_open", "Open client connections.", transport::connectionCount);
+        metrics.counter("keyserver_read_timeouts_total", "Connections closed on the read deadline.", transport::readTimeouts);
+        metrics.counter("keyserver_write_timeouts_total", "Connections closed on the write deadline.", transport::writeTimeouts);
+        metrics.gauge("keyserver_cache_hit_ratio", "Cache hits divided by lookups since start.", cache::hitRatio);
+        metrics.gauge("keyserver_cache_entries", "Entries in the certificate cache.", cache::size);
+        metrics.gauge("keyserver_cache_bytes", "Weighted size of cached responses in bytes.", cache::weightedBytes);
+        metrics.counter("keyserver_cache_hits_total", "Cache lookups that found an entry.", cache::hitCount);
+        metrics.counter("keyserver_cache_misses_total", "Cache lookups that found nothing.", cache::missCount);
+        metrics.counter("keyserver_cache_evictions_total", "Entries evicted or refused admission.", cache::evictionCount);
+        metrics.gauge("keyserver_generation_active", "Generation tasks running in the pool.", activeTasks::get);
+        metrics.gauge("keyserver_generation_queued", "Generation tasks waiting for a pool thread.", queuedTasks::get);
+        metrics.gauge("keyserver_generation_in_flight", "Names with a generation or forward in progress.", inFlight::size);
+        metrics.counter("keyserver_generation_deduplicated_total",
+            "Cache misses that joined a running generation of the same name instead of starting another.",
+            deduplicated::sum);
+        metrics.counter("keyserver_generation_failures_evicted_total",
+            "Failed generations removed from the cache as soon as they failed.", failedEvictions::sum);
+        metrics.counter("keyserver_refresh_ahead_total", "Hot entries regenerated in the background before expiry.",
+            refreshes::sum);
+        metrics.counter("keyserver_refresh_ahead_failures_total",
+            "Background refreshes that failed; the old entry stays until its TTL.", refreshFailures::sum);
+        metrics.counter("keyserver_refresh_ahead_deferred_total",
+            "Refreshes postponed because the generator pool was busy or the refresh budget was used up.",
+            refreshesDeferred::sum);
+        metrics.gauge("keyserver_refresh_ahead_in_flight", "Background refreshes in progress.", refreshing::get);
+        metrics.gauge("keyserver_generation_threads", "Current size of the adaptive generator pool.", pool::size);
+        metrics.counter("keyserver_generation_pool_grows_total", "Times the generator pool controller added threads.",
+            pool::growCount);
+        metrics.counter("keyserver_generation_pool_shrinks_total", "Times the generator pool controller removed threads.",
+            pool::shrinkCount);
+        metrics.gauge("keyserver_cpu_load", "Host CPU load seen by the generator pool controller, -1 if unknown.",
+            pool::cpuLoad);
+        metrics.counter("keyserver_generation_completed_total", "Key pairs generated and signed.", completedTasks::get);
+        metrics.counter("keyserver_generation_rejected_total", "Cache misses refused because the generation queue was full.",
+            rejectedTasks::sum);
+        metrics.counter("keyserver_generation_throttled_total",
+            "Cache misses refused because their client or tenant exceeded its generation rate.", scheduler::throttledCount);
+        metrics.gauge("keyserver_fair_sources_active", "Clients or tenants with generations waiting in the fair queue.",
+            scheduler::activeSources);
+        metrics.gauge("keyserver_rate_limit_buckets", "Token buckets currently held for clients or tenants.",
+            scheduler::buckets);
+        metrics.gauge("keyserver_keypool_depth", "Pre-generated key pairs ready in the reservoir.", keyPairPool::depth);
+        metrics.counter("keyserver_keypool_exhausted_total", "Takes that found the reservoir empty.", keyPairPool::exhaustedCount);
+        metrics.counter("keyserver_keypool_generated_total", "Key pairs generated by the reservoir refill threads.",
+            keyPairPool::generatedCount);
+        metrics.gauge("keyserver_keypool_refill_rate", "Key pairs per second generated while the reservoir was refilling.",
+            keyPairPool::refillRate);
+        for (KeyBackends.Rate r : backends.rates()) {
+            metrics.gauge("keyserver_backend_ops_per_second",
+                "operation=\"" + r.operation() + "\",backend=\"" + r.backend() + "\",selected=\"" + r.selected() + "\"",
+                "Operations per second of each key backend measured at startup, -1 if not measured.", r::opsPerSecond);
+        }
+        if (cluster != null) {
+            metrics.gauge("keyserver_cluster_nodes", "Nodes in the static cluster, this one included.", cluster::size);
+            metrics.counter("keyserver_forwarded_total", "Cache misses forwarded to the owner node.", forwardedTasks::sum);
+            metrics.counter("keyserver_forward_fallbacks_total", "Forwards that fell back to local generation.",
+                forwardFallbacks::sum);
+        }
+        if (store != null) {
+            metrics.gauge("keyserver_store_names", "Names indexed in the on-disk store.", store::size);
+        }
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Порт HTTP выгрузки метрик или -1, если она выключена. */
+    public int getMetricsPort() {
+        return metricsServer != null ? metricsServer.port() : -1;
+    }
+
+    public CertificateCache getCache() {
+        return cache;
+    }
+
+    public CertificateStore getStore() {
+        return store;
+    }
+
+    /** Исключение отменило бы периодическую задачу без следа, поэтому сбой только записывается в журнал. */
+    private void syncStore() {
+        try {
+            store.sync();
+        } catch (UncheckedIOException e) {
+            logger.error("Store sync failed: {}", e.getMessage(), e);
+        }
+    }
+
+    private void compactStore() {
+        try {
+            store.compact();
+        } catch (IOException e) {
+            logger.error("Store compaction failed: {}", e.getMessage(), e);
+        }
+    }
+
+    /** Пул генерации: текущий размер и последние решения контроллера. */
+    public AdaptiveExecutor getGeneratorPool() {
+        return pool;
+    }
+
+    public KeyBackends getKeyBackends() {
+        return backends;
+    }
+
+    public KeyPairPool getKeyPairPool() {
+        return keyPairPool;
+    }
+
+    /**
+     * Сокет Unix для клиентов на той же машине: без стека TCP и без эфемерных портов. Файл, оставшийся
+     * от упавшего сервера, мешает bind - он удаляется, если на нём никто не принимает подключения.
+     */
+    private static ServerSocketChannel bindUnix(Path path) throws IOException {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(path);
+        if (Files.isRegularFile(path) || Files.isDirectory(path)) {
+            throw new IOException(path + " exists and is not a socket");
+        }
+        if (Files.exists(path)) {
+            boolean alive;
+            try {
+                SocketChannel.open(address).close();
+                alive = true;
+            } catch (IOException e) {
+                alive = false;
+            }
+            if (alive) throw new IOException("Unix socket " + path + " is already in use");
+            Files.delete(path);
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(address, ACCEPT_BACKLOG);
+        return channel;
     }
 
     public void start() throws IOException {
-        logger.info("Server listening on port {}", port);
-        while (running.get()) {
-            processReady();
-            selector.select(500);
-            processReady();
-            for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
-                SelectionKey key = it.next(); it.remove();
-                if (!key.isValid()) continue;
-                if (key.isAcceptable()) handleAccept();
-                else if (key.isReadable()) handleRead(key);
-                else if (key.isWritable()) handleWrite(key);
+        if (port >= 0) logger.info("Server listening on port {} ({})", port, transport);
+        if (unixSocket != null) logger.info("Server listening on unix socket {} ({})", unixSocket, transport);
+        if (cluster != null) logger.info("Cluster node {}", cluster);
+        transport.run();
+    }
+
+    boolean isRunning() {
+        return running.get();
+    }
+
+    void onTick(long nowNanos) {
+        cache.expire(nowNanos);
+    }
+
+    public long getReadTimeouts() {
+        return transport.readTimeouts();
+    }
+
+    public long getWriteTimeouts() {
+        return transport.writeTimeouts();
+    }
+
+    /** Сколько буферов чтения реакторы выделили за всё время; в установившемся режиме не растёт. */
+    public long getReadBufferAllocations() {
+        return transport.readBufferAllocations();
+    }
+
+    /** TCP-порт; -1, если сервер слушает только сокет Unix. */
+    public int getPort() {
+        return port;
+    }
+
+    /** Путь сокета Unix или null. */
+    public Path getUnixSocket() {
+        return unixSocket;
+    }
+
+    CacheKey keyFor(Request request) {
+        return new CacheKey(request.name(), request.keySpec() != null ? request.keySpec() : defaultKeySpec);
+    }
+
+    CompletableFuture<PairPem> issue(CacheKey key) {
+        return issue(key, false, FairScheduler.INTERNAL);
+    }
+
+    /**
+     * Запрос действительно переслан узлом кластера. Флаг пересылки снимает норму и задаёт источник
+     * тегом, поэтому он принимается только с адресов других узлов; от остальных клиентов игнорируется.
+     */
+    boolean forwardedBy(Request request, String address) {
+        if (!request.forwarded()) return false;
+        if (cluster != null && cluster.isPeerAddress(address)) return true;
+        logger.debug("Ignoring forwarded flag from non-member {}", address);
+        return false;
+    }
+
+    /**
+     * Источник запроса для FairScheduler: тег арендатора при --fair-by=tenant, иначе адрес клиента.
+     * Пересланный запрос (forwardedBy) несёт в теге источник с узла, который его принял.
+     */
+    String sourceOf(Request request, String address, boolean forwarded) {
+        String tenant = request.tenant();
+        return tenant != null && (fairByTenant || forwarded) ? tenant : address;
+    }
+
+    /**
+     * Пара для ключа: готовая или ожидающаяся запись кэша, запись из хранилища, пересылка владельцу
+     * имени в кластере или новая генерация в пуле. forwarded - запрос пришёл от другого узла и
+     * обслуживается здесь, даже если кольца узлов разошлись. Для попадания в кэш возвращает уже
+     * завершённый future без выделения памяти.
+     *
+     * Генерации идут через таблицу inFlight: запись в неё атомарна, поэтому на одно имя одновременно
+     * работает одна генерация, даже если промахи пришли из разных потоков или кэш успел вытеснить
+     * незавершённую запись. Остальные запросы ждут её future.
+     *
+     * source - чей это запрос (sourceOf). Новая генерация или пересылка списывает токен его нормы,
+     * а генерация встаёт в его очередь FairScheduler. Пересланные запросы норму не списывают - её
+     * уже списал принявший узел. Только владелец, который не нашёл отправителя среди узлов кластера
+     * (forwardedBy), списывает её второй раз; его THROTTLED доходит до клиента как THROTTLED.
+     */
+    CompletableFuture<PairPem> issue(CacheKey key, boolean forwarded, String source) {
+        if (!allowed(key.spec())) return CompletableFuture.failedFuture(new KeySpecNotAllowedException(key.spec(), maxRsaBits));
+        var entry = cache.get(key);
+        if (entry != null && !entry.isExpired()) {
+            if (entry.future.isDone()) {
+                ServerEvents.cacheLookup(key, "hit", entry.future);
+                if (refreshAheadMs > 0) maybeRefresh(key, entry);
+            } else {
+                logger.debug("Waiting for in-flight generation of: {}", key);
+                ServerEvents.cacheLookup(key, "pending", null);
             }
+            return entry.future;
+        }
+        CertificateStore.StoredPair stored;
+        if (store != null && (stored = store.get(key.storeKey())) != null) {
+            CompletableFuture<PairPem> fut = CompletableFuture.completedFuture(PairPem.of(stored.priv(), stored.cert()));
+            cache.put(key, new CacheEntry(fut));
+            logger.debug("Using stored result for: {}", key);
+            ServerEvents.cacheLookup(key, "store", fut);
+            return fut;
+        }
+        CacheEntry created = new CacheEntry(new CompletableFuture<>());
+        CacheEntry running = inFlight.putIfAbsent(key, created);
+        if (running != null) {
+            deduplicated.increment();
+            logger.debug("Joined in-flight generation of: {}", key);
+            ServerEvents.cacheLookup(key, "joined", null);
+            return running.future;
+        }
+        // Между промахом и записью в inFlight генерация могла закончиться и попасть в кэш
+        entry = cache.peek(key);
+        if (entry != null && !entry.isExpired() && entry.future.isDone() && !entry.future.isCompletedExceptionally()) {
+            inFlight.remove(key, created);
+            ServerEvents.cacheLookup(key, "hit", entry.future);
+            return entry.future;
+        }
+        ServerEvents.cacheLookup(key, "miss", null);
+        PeerClient owner = cluster != null && !forwarded ? cluster.ownerOf(key.name()) : null;
+        // Попадания и уже идущие генерации выше проходят всегда; ограничена только новая работа
+        long throttledMs = forwarded || source.isEmpty() ? 0 : scheduler.tryAcquire(source);
+        if (throttledMs > 0) {
+            land(key, created, null, new GenerationThrottledException(source, (int) Math.min(MAX_RETRY_AFTER_MS, throttledMs)));
+            return created.future;
+        }
+        if (owner == null && !admit()) {
+            land(key, created, null, new GenerationRejectedException(retryAfterMs()));
+            return created.future;
         }
+        cache.put(key, created);
+        if (owner != null) {
+            forward(owner, key, created, source);
+        } else {
+            generate(key, created, source);
+        }
+        return created.future;
     }
 
-    private void processReady() {
-        ClientConnection c;
-        while ((c = readyToWrite.poll()) != null) {
-            SelectionKey k = c.channel.keyFor(selector);
-            if (k != null && k.isValid()) {
-                k.interestOps(SelectionKey.OP_WRITE);
+    /**
+     * Завершает генерацию: запись уходит из inFlight, а при ошибке и из кэша - до того, как ошибку
+     * увидят ждущие, чтобы следующий запрос начал заново, а не получил её же до истечения TTL.
+     */
+    private void land(CacheKey key, CacheEntry entry, PairPem pair, Throwable ex) {
+        if (entry.replaces != null) {
+            refreshing.decrementAndGet();
+            if (ex != null) {
+                refreshFailures.increment();
+                logger.warn("Background refresh of {} failed: {}", key, ex.getMessage());
+                inFlight.remove(key, entry);
+                entry.future.completeExceptionally(ex);
+            } else {
+                // Сначала завершаем: попадание в подменённую запись не должно ждать
+                entry.future.complete(pair);
+                cache.replace(key, entry.replaces, entry);
+                inFlight.remove(key, entry);
+                logger.debug("Refreshed {} ahead of expiry", key);
             }
+            return;
+        }
+        if (ex != null) {
+            if (!(ex instanceof GenerationRejectedException)) failedEvictions.increment();
+            cache.remove(key, entry);
+            inFlight.remove(key, entry);
+            entry.future.completeExceptionally(ex);
+        } else {
+            entry.future.complete(pair);
+            inFlight.remove(key, entry);
         }
     }
 
-    private void handleAccept() throws IOException {
-        SocketChannel sc = serverChannel.accept();
-        if (sc == null) return;
-        sc.configureBlocking(false);
-        sc.register(selector, SelectionKey.OP_READ, new ClientConnection(sc));
-        logger.info("Accepted connection from {}", sc.getRemoteAddress());
+    /**
+     * Refresh-ahead: попадание в горячую запись, которой до истечения TTL осталось меньше refreshAheadMs,
+     * запускает фоновую генерацию новой пары. Пока она идёт, читатели получают старую пару, готовая
+     * новая подменяет её в кэше на том же месте. Горячесть - оценка частоты имени по скетчу кэша.
+     * Обновление не конкурирует с промахами: оно стартует, только если очередь генерации пуста, в пуле
+     * есть свободный поток и идёт меньше refreshMaxInFlight обновлений, иначе ждёт следующего попадания.
+     * На одно имя одновременно идёт одна генерация - обновление тоже занимает место в inFlight.
+     * В кластере обновляет только владелец имени: копия на другом узле получила бы от владельца ту же
+     * пару со свежим TTL и пережила бы его запись, поэтому она просто истекает и запрашивается заново.
+     */
+    private void maybeRefresh(CacheKey key, CacheEntry entry) {
+        if (entry.future.isCompletedExceptionally()) return;
+        if (System.currentTimeMillis() - entry.timestamp < CACHE_TTL_MS - refreshAheadMs) return;
+        if (cluster != null && cluster.ownerOf(key.name()) != null) return;
+        if (inFlight.containsKey(key) || cache.frequency(key) < refreshMinFrequency) return;
+        if (generationBusy()) {
+            refreshesDeferred.increment();
+            return;
+        }
+        if (refreshing.incrementAndGet() > refreshMaxInFlight) {
+            refreshing.decrementAndGet();
+            refreshesDeferred.increment();
+            return;
+        }
+        CacheEntry next = new CacheEntry(new CompletableFuture<>(), entry);
+        if (inFlight.putIfAbsent(key, next) != null) {
+            refreshing.decrementAndGet();
+            return;
+        }
+        refreshes.increment();
+        logger.debug("Refreshing {} ahead of expiry", key);
+        queuedTasks.incrementAndGet();
+        generate(key, next, FairScheduler.INTERNAL);
     }
 
-    private void handleRead(SelectionKey key) {
-        ClientConnection c = (ClientConnection) key.attachment();
-        try {
-            int n = c.channel.read(c.readBuffer);
-            if (n == -1) {
-                c.close();
-                key.cancel();
+    /** Генерации клиентов ждут потока или заняли весь пул: фоновой работе пора уступить. */
+    private boolean generationBusy() {
+        return queuedTasks.get() > 0 || activeTasks.get() >= pool.size();
+    }
+
+    /**
+     * Алгоритм, который выдаётся клиентам: свой алгоритм по умолчанию, EC и Ed25519 - всегда, RSA - размеры,
+     * кратные 1024, от MIN_RSA_BITS до --max-rsa-bits (по умолчанию 2048, 3072 и 4096).
+     */
+    private boolean allowed(KeySpec spec) {
+        if (spec.algorithm() != KeyAlgorithm.RSA || spec.equals(defaultKeySpec)) return true;
+        return spec.size() >= MIN_RSA_BITS && spec.size() <= maxRsaBits && spec.size() % 1024 == 0;
+    }
+
+    /** Место в очереди генерации; при переполнении учитывает отказ. */
+    private boolean admit() {
+        if (queuedTasks.incrementAndGet() <= queueLimit) return true;
+        queuedTasks.decrementAndGet();
+        rejectedTasks.increment();
+        return false;
+    }
+
+    /** Генерация в пуле для уже принятой в очередь задачи; очередь пула делится по source. */
+    private void generate(CacheKey key, CacheEntry entry, String source) {
+        long submitted = System.nanoTime();
+        ServerEvents.generationQueued(key, queuedTasks.get(), pool.size());
+        scheduler.submit(source, () -> {
+            queuedTasks.decrementAndGet();
+            activeTasks.incrementAndGet();
+            ServerEvents.Generation event = new ServerEvents.Generation();
+            event.begin();
+            long started = System.nanoTime();
+            metrics.queueWait.record(started - submitted);
+            try {
+                KeyPair kp = keyPairPool.take(key.spec());
+                long generated = System.nanoTime();
+                metrics.keygen.record(generated - started);
+                byte[] cert = certificates.issue(key.name(), kp.getPublic());
+                long signed = System.nanoTime();
+                metrics.signing.record(signed - generated);
+
+                PairPem pair = PairPem.encode(PemEncoder.privateKey(kp.getPrivate()), PemEncoder.certificate(cert));
+                metrics.pemEncoding.recordSince(signed);
+                if (store != null) {
+                    try {
+                        store.put(key.storeKey(), pair.priv(), pair.cert(), System.currentTimeMillis());
+                    } catch (IOException e) {
+                        logger.error("Failed to persist key pair for {}: {}", key, e.getMessage());
+                    }
+                }
+                land(key, entry, pair, null);
+                completedTasks.incrementAndGet();
+                activeTasks.decrementAndGet();
+                ServerEvents.generated(event, key, started - submitted, pair);
+                logger.info("Generated key pair for: {}", key);
+            } catch (Exception e) {
+                activeTasks.decrementAndGet();
+                land(key, entry, null, e);
+                ServerEvents.generated(event, key, started - submitted, null);
+            }
+        });
+    }
+
+    /**
+     * Промах по чужому имени уходит владельцу; ответ остаётся в кэше этого узла как копия. Если владелец
+     * недоступен, пара генерируется здесь - имя тогда может существовать в двух вариантах, но клиент
+     * не ждёт восстановления узла. Отказ владельца и ошибки не кэшируются.
+     */
+    private void forward(PeerClient owner, CacheKey key, CacheEntry entry, String source) {
+        forwardedTasks.increment();
+        if (logger.isDebugEnabled()) logger.debug("Forwarding {} to {}", key, owner);
+        owner.request(key, source).whenComplete((pair, ex) -> {
+            if (ex == null) {
+                land(key, entry, pair, null);
                 return;
             }
-            c.readBuffer.flip();
-            byte[] data = new byte[c.readBuffer.limit()];
-            c.readBuffer.get(data);
-            int zero = -1;
-            for (int i = 0; i < data.length; i++)
-                if (data[i] == 0) {
-                    zero = i;
-                    break;
+            if (PeerClient.isUnavailable(ex)) {
+                forwardFallbacks.increment();
+                logger.warn("Owner {} of {} is unavailable ({}), generating locally", owner, key, ex.getMessage());
+                if (admit()) {
+                    generate(key, entry, source);
+                    return;
                 }
-            if (zero == -1) {
-                c.readBuffer.compact();
-                return;
+                ex = new GenerationRejectedException(retryAfterMs());
             }
+            land(key, entry, null, ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+        });
+    }
 
-            String name = new String(data, 0, zero, StandardCharsets.US_ASCII);
+    /** Промахи, которые присоединились к уже идущей генерации того же имени вместо запуска своей. */
+    public long getDeduplicatedCount() {
+        return deduplicated.sum();
+    }
 
-            if (name.length() > MAX_NAME_LENGTH) {
-                logger.warn("Name too long: {} characters (max: {})", name.length(), MAX_NAME_LENGTH);
-                sendError(c, "Name too long");
-                return;
-            }
+    /** Неудачные генерации, удалённые из кэша сразу после ошибки. */
+    public long getFailedEvictionCount() {
+        return failedEvictions.sum();
+    }
 
-            logger.info("Request: {}", name);
-            c.requestedName = name;
-            c.readBuffer.clear();
-            key.interestOps(0);
+    /** Фоновые обновления горячих записей, запущенные до истечения TTL. */
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
 
-            cleanupExpiredCache();
+    public long getRefreshFailureCount() {
+        return refreshFailures.sum();
+    }
 
-            var entry = cache.get(name);
-            CompletableFuture<PairPem> fut;
+    public long getForwardedCount() {
+        return forwardedTasks.sum();
+    }
 
-            if (entry != null && !entry.isExpired()) {
-                fut = entry.future;
-                logger.debug("Using cached result for: {}", name);
-            } else {
-                fut = new CompletableFuture<PairPem>();
-                activeTasks.incrementAndGet();
-                pool.submit(() -> {
-                    try {
-                        KeyPair kp;
-                        X509Certificate cert;
-
-                        kp = CertificateUtils.generateRSAKeyPair(2048);
-                        cert = CertificateUtils.buildCertificate(name, kp.getPublic(), issuerKey, issuerDN);
-
-                        var privPem = CertificateUtils.toPem(kp.getPrivate()).getBytes(StandardCharsets.UTF_8);
-                        var certPem = CertificateUtils.toPem(cert).getBytes(StandardCharsets.UTF_8);
-                        fut.complete(new PairPem(privPem, certPem));
-                        completedTasks.incrementAndGet();
-                        activeTasks.decrementAndGet();
-                        logger.info("Generated key pair for: {}", name);
-                    } catch (Exception e) {
-                        activeTasks.decrementAndGet();
-                        fut.completeExceptionally(e);
-                    }
-                });
-                cache.put(name, new CacheEntry(fut));
+    public long getForwardFallbackCount() {
+        return forwardFallbacks.sum();
+    }
+
+    /**
+     * Через сколько повторить отклонённый запрос: время на разбор текущей очереди по средней
+     * длительности генерации и подписи, но не меньше --retry-after-ms и не больше минуты.
+     */
+    private int retryAfterMs() {
+        long done = metrics.signing.count();
+        if (done == 0) return retryAfterMs;
+        double perTaskMs = (metrics.keygen.sumNanos() + metrics.signing.sumNanos()) / 1e6 / done;
+        long estimate = (long) (queuedTasks.get() * perTaskMs / pool.size());
+        return (int) Math.min(MAX_RETRY_AFTER_MS, Math.max(retryAfterMs, estimate));
+    }
+
+    public long getRejectedCount() {
+        return rejectedTasks.sum();
+    }
+
+    /** Промахи, отклонённые с THROTTLED, потому что их источник исчерпал норму генераций. */
+    public long getThrottledCount() {
+        return scheduler.throttledCount();
+    }
+
+    /**
+     * Ответ на неудавшуюся выдачу: THROTTLED для превысившего норму источника, RETRY_LATER для отказа
+     * по перегрузке, иначе ошибка.
+     */
+    ByteBuffer failureResponse(boolean persistent, int requestId, CacheKey key, Throwable ex) {
+        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        if (cause instanceof GenerationThrottledException throttled) {
+            logger.debug("Throttled {}: {}", key, cause.getMessage());
+            return persistent ? Protocol.frameThrottled(requestId, throttled.retryAfterMs())
+                : Protocol.legacyThrottled(throttled.retryAfterMs());
+        }
+        if (cause instanceof KeySpecNotAllowedException) {
+            logger.debug("Refused {}: {}", key, cause.getMessage());
+            return persistent ? Protocol.frameError(requestId, cause.getMessage()) : Protocol.legacyError(cause.getMessage());
+        }
+        if (cause instanceof GenerationRejectedException rejected) {
+            logger.debug("Rejected {}: {}", key, cause.getMessage());
+            return persistent ? Protocol.frameRetryLater(requestId, rejected.retryAfterMs())
+                : Protocol.legacyRetryLater(rejected.retryAfterMs());
+        }
+        logger.error("Error generating key for {}: {}", key, cause.getMessage());
+        String message = "Key generation failed: " + cause.getMessage();
+        return persistent ? Protocol.frameError(requestId, message) : Protocol.legacyError(message);
+    }
+
+    void handleRequest(ClientConnection c, Request request) {
+        CacheKey key = keyFor(request);
+        try {
+            if (logger.isDebugEnabled()) logger.debug("Request #{}: {}", request.id(), key);
+
+            boolean forwarded = forwardedBy(request, c.address());
+            CompletableFuture<PairPem> fut = issue(key, forwarded, sourceOf(request, c.address(), forwarded));
+            if (fut.isDone() && !fut.isCompletedExceptionally()) {
+                // Горячий путь: готовый ответ пишется прямо из потока реактора, без пула и без копий
+                c.reactor.writeResponse(c, request, fut.join().payload(request.format()));
+                return;
             }
 
             fut.whenComplete((res, ex) -> {
                 try {
-                    ByteBuffer bb;
                     if (ex != null) {
-                        logger.error("Error generating key for {}: {}", c.requestedName, ex.getMessage());
-                        sendError(c, "Key generation failed: " + ex.getMessage());
+                        c.send(failureResponse(c.isPersistent(), request.id(), key, ex));
                     } else {
-                        logger.info("Sending key for {} (priv: {} bytes, cert: {} bytes)",
-                            c.requestedName, res.priv().length, res.cert().length);
-                        bb = ByteBuffer.allocate(1 + 4 + res.priv().length + 4 + res.cert().length);
-                        bb.put((byte) 0);
-                        bb.putInt(res.priv().length).put(res.priv());
-                        bb.putInt(res.cert().length).put(res.cert());
-                        bb.flip();
-                        c.writeBuffer = bb;
-                        readyToWrite.add(c);
-                        selector.wakeup();
+                        logger.debug("Sending key for {} (priv: {} bytes, cert: {} bytes)",
+                            key, res.priv().remaining(), res.cert().remaining());
+                        ByteBuffer[] out = response(c, request.id(), res.payload(request.format()).duplicate());
+                        ServerEvents.trackFlush(c, out, request);
+                        c.send(out);
                     }
                 } catch (Exception e2) {
                     logger.error("Error in whenComplete: {}", e2.getMessage(), e2);
                 }
             });
         } catch (Exception e) {
-            logger.error("Error handling read: {}", e.getMessage(), e);
+            logger.error("Error handling request: {}", e.getMessage(), e);
         }
     }
 
-    private void sendError(ClientConnection c, String message) {
-        try {
-            byte[] msgBytes = message.getBytes(StandardCharsets.UTF_8);
-            ByteBuffer bb = ByteBuffer.allocate(1 + 4 + msgBytes.length);
-            bb.put((byte) 1);
-            bb.putInt(msgBytes.length).put(msgBytes);
-            bb.flip();
-            c.writeBuffer = bb;
-            readyToWrite.add(c);
-            selector.wakeup();
-        } catch (Exception e) {
-            logger.error("Error sending error message: {}", e.getMessage());
-        }
+    static ByteBuffer[] response(ClientConnection c, int requestId, ByteBuffer payload) {
+        if (!c.isPersistent()) return new ByteBuffer[] { payload };
+        return new ByteBuffer[] { Protocol.frameHeader(requestId, payload.remaining()), payload };
     }
 
-    private void cleanupExpiredCache() {
-        cache.entrySet().removeIf(entry -> entry.getValue().isExpired());
-    }
-
-    private void handleWrite(SelectionKey key) {
-        ClientConnection client = (ClientConnection) key.attachment();
+    void sendError(ClientConnection c, int requestId, String message) {
         try {
-            ByteBuffer buffer = client.writeBuffer;
-            if (buffer == null) {
-                key.interestOps(0);
-                return;
-            }
-
-            client.channel.write(buffer);
-
-            if (!buffer.hasRemaining()) {
-                client.writeBuffer = null;
-                try {
-                    logger.debug("Finished sending to {}", client.channel.getRemoteAddress());
-                } catch (IOException ignored) {}
-                client.close();
-                key.cancel();
-            }
-
-        } catch (IOException e) {
-            try {
-                logger.error("Write error: {}", e.getMessage());
-            } catch (Exception ignored) {}
-            client.close();
-            key.cancel();
+            c.send(c.isPersistent() ? Protocol.frameError(requestId, message) : Protocol.legacyError(message));
+        } catch (Exception e) {
+            logger.error("Error sending error message: {}", e.getMessage());
         }
     }
 }
@@ -0,0 +1,14 @@
+package ru.nsu.nocode.server;
+
+import ru.nsu.nocode.protocol.KeySpec;
+
+/**
+ * Клиент запросил алгоритм, который сервер не выдаёт: RSA короче 2048 бит (небезопасно) или длиннее
+ * --max-rsa-bits (секунды CPU на каждое новое имя). Клиент получает ошибку, генерация не начинается.
+ */
+public class KeySpecNotAllowedException extends Exception {
+    public KeySpecNotAllowedException(KeySpec spec, int maxRsaBits) {
+        super("Key " + spec + " is not allowed: RSA size must be a multiple of 1024 in "
+            + KeyServer.MIN_RSA_BITS + ".." + maxRsaBits, null, false, false);
+    }
+}
@@ -0,0 +1,203 @@
+package ru.nsu.nocode.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.nsu.nocode.protocol.Protocol;
+import ru.nsu.nocode.protocol.Request;
+import ru.nsu.nocode.protocol.ResponseFormat;
+
+/**
+ * Постоянное соединение с другим узлом кластера по версионированному протоколу. Запросы идут
+ * конвейером: виртуальный поток записи отправляет кадры из очереди, виртуальный поток чтения
+ * сопоставляет ответы по идентификатору. Соединение открывается при первом запросе. Если узел
+ * недоступен или соединение оборвалось, ожидающие запросы завершаются PeerUnavailableException;
+ * после неудачного подключения узел RETRY_DELAY_MS считается недоступным без новых попыток.
+ */
+final class PeerClient implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(PeerClient.class);
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private final String address;
+    private final String host;
+    private final int port;
+    private final long timeoutMs;
+    private final LinkedBlockingQueue<Outgoing> outbox = new LinkedBlockingQueue<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Thread writer;
+    private volatile long downUntil;
+    private volatile boolean closed;
+    // Только поток записи
+    private Link link;
+
+    PeerClient(String address, long timeoutMs) {
+        this.address = address;
+        int colon = address.lastIndexOf(':');
+        this.host = address.substring(0, colon);
+        this.port = Integer.parseInt(address.substring(colon + 1));
+        this.timeoutMs = timeoutMs;
+        this.writer = Thread.ofVirtual().name("Peer-" + address).start(this::writeLoop);
+    }
+
+    /**
+     * Пара от владельца; ответ не пришёл за timeoutMs - TimeoutException. source уходит владельцу
+     * в теге арендатора, чтобы он ставил генерацию в очередь того же клиента.
+     */
+    CompletableFuture<KeyServer.PairPem> request(KeyServer.CacheKey key, String source) {
+        if (closed || System.currentTimeMillis() < downUntil) {
+            return CompletableFuture.failedFuture(new PeerUnavailableException(address + " is unavailable"));
+        }
+        CompletableFuture<KeyServer.PairPem> fut = new CompletableFuture<>();
+        outbox.add(new Outgoing(key, source, fut));
+        return fut.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Ошибка, после которой стоит сгенерировать пару самому, а не отдавать её клиенту. */
+    static boolean isUnavailable(Throwable ex) {
+        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        return cause instanceof PeerUnavailableException || cause instanceof TimeoutException;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        writer.interrupt();
+    }
+
+    @Override
+    public String toString() {
+        return address;
+    }
+
+    private void writeLoop() {
+        try {
+            while (!closed) {
+                Outgoing next = outbox.take();
+                Link l = link;
+                if (l == null || l.closed) {
+                    try {
+                        l = link = new Link();
+                    } catch (IOException e) {
+                        downUntil = System.currentTimeMillis() + RETRY_DELAY_MS;
+                        logger.warn("Peer {} is unreachable: {}", address, e.getMessage());
+                        PeerUnavailableException ex = new PeerUnavailableException(address + ": " + e.getMessage());
+                        next.future.completeExceptionally(ex);
+                        for (Outgoing o; (o = outbox.poll()) != null; ) o.future.completeExceptionally(ex);
+                        continue;
+                    }
+                }
+                try {
+                    l.send(next);
+                    if (outbox.isEmpty()) l.out.flush();
+                } catch (IOException e) {
+                    l.close(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // close()
+        }
+        if (link != null) link.close(new IOException("closed"));
+        PeerUnavailableException ex = new PeerUnavailableException(address + " client closed");
+        for (Outgoing o; (o = outbox.poll()) != null; ) o.future.completeExceptionally(ex);
+    }
+
+    private record Outgoing(KeyServer.CacheKey key, String source, CompletableFuture<KeyServer.PairPem> future) {}
+
+    /** Одно подключение к узлу со своими ожидающими ответами. */
+    private final class Link {
+        final Socket socket = new Socket();
+        final OutputStream out;
+        final DataInputStream in;
+        final ConcurrentHashMap<Integer, CompletableFuture<KeyServer.PairPem>> pending = new ConcurrentHashMap<>();
+        volatile boolean closed;
+
+        Link() throws IOException {
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                out = new BufferedOutputStream(socket.getOutputStream());
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out.write(Protocol.versionByte(Protocol.VERSION_1));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            logger.info("Connected to peer {}", address);
+            Thread.ofVirtual().name("PeerReader-" + address).start(this::readLoop);
+        }
+
+        void send(Outgoing o) throws IOException {
+            int id = nextId.getAndIncrement();
+            pending.put(id, o.future);
+            o.future.whenComplete((r, e) -> pending.remove(id));
+            // Закрытие могло пройти по pending раньше, чем запрос туда попал
+            if (closed) throw new IOException("connection closed");
+            String tenant = o.source.isEmpty() ? null : o.source;
+            Request request = new Request(id, o.key.name(), o.key.spec(), ResponseFormat.PEM, true, tenant);
+            ByteBuffer frame = Protocol.encodeRequest(request);
+            out.write(frame.array(), 0, frame.limit());
+        }
+
+        void readLoop() {
+            try {
+                while (true) {
+                    in.readInt();
+                    int id = in.readInt();
+                    byte status = in.readByte();
+                    CompletableFuture<KeyServer.PairPem> fut = pending.remove(id);
+                    if (status == Protocol.STATUS_OK) {
+                        byte[] priv = new byte[in.readInt()];
+                        in.readFully(priv);
+                        byte[] cert = new byte[in.readInt()];
+                        in.readFully(cert);
+                        if (fut != null) fut.complete(KeyServer.PairPem.of(ByteBuffer.wrap(priv), ByteBuffer.wrap(cert)));
+                    } else if (status == Protocol.STATUS_THROTTLED) {
+                        int retryAfterMs = in.readInt();
+                        if (fut != null) fut.completeExceptionally(new GenerationThrottledException("owner " + address, retryAfterMs));
+                    } else if (status == Protocol.STATUS_RETRY_LATER) {
+                        int retryAfterMs = in.readInt();
+                        if (fut != null) fut.completeExceptionally(new GenerationRejectedException(retryAfterMs));
+                    } else {
+                        byte[] message = new byte[in.readInt()];
+                        in.readFully(message);
+                        if (fut != null) {
+                            fut.completeExceptionally(new IOException(
+                                "Owner " + address + ": " + new String(message, StandardCharsets.UTF_8)));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        void close(IOException cause) {
+            if (closed) return;
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            if (!pending.isEmpty()) logger.warn("Connection to peer {} lost: {}", address, cause.getMessage());
+            PeerUnavailableException ex = new PeerUnavailableException(address + ": " + cause.getMessage());
+            pending.values().forEach(f -> f.completeExceptionally(ex));
+        }
+    }
+}
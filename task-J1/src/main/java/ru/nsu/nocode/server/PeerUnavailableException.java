@@ -0,0 +1,13 @@
+package ru.nsu.nocode.server;
+
+import java.io.IOException;
+
+/**
+ * Владелец имени недоступен: не удалось подключиться или соединение с ним оборвалось до ответа.
+ * Узел, переславший запрос, в этом случае генерирует пару сам.
+ */
+class PeerUnavailableException extends IOException {
+    PeerUnavailableException(String message) {
+        super(message, null);
+    }
+}
@@ -0,0 +1,114 @@
+package ru.nsu.nocode.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+
+/**
+ * PEM прямо в буфер ответа: длина известна заранее, base64 пишется строками по 64 символа без
+ * промежуточных String и StringWriter. Вывод побайтно совпадает с JcaPEMWriter: тот же тип блока,
+ * то же DER внутри и тот же разделитель строк.
+ */
+public final class PemEncoder {
+    private static final byte[] ALPHABET =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final int LINE = 64;
+    private static final byte[] END = "-----END ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    private PemEncoder() {}
+
+    /** Тип и содержимое PEM-блока. */
+    public record Block(String type, byte[] der) {
+        public int pemLength() {
+            int chars = (der.length + 2) / 3 * 4;
+            int lines = (chars + LINE - 1) / LINE;
+            return header(type).length + footer(type).length + chars + (lines + 2) * NEWLINE.length;
+        }
+    }
+
+    public static Block certificate(byte[] der) {
+        return new Block("CERTIFICATE", der);
+    }
+
+    /**
+     * Как MiscPEMGenerator: RSA - PKCS#1 "RSA PRIVATE KEY", EC - SEC1 "EC PRIVATE KEY",
+     * остальные (Ed25519) - PKCS#8 "PRIVATE KEY".
+     */
+    public static Block privateKey(PrivateKey key) throws IOException {
+        PrivateKeyInfo info = PrivateKeyInfo.getInstance(key.getEncoded());
+        ASN1ObjectIdentifier algorithm = info.getPrivateKeyAlgorithm().getAlgorithm();
+        if (algorithm.equals(PKCSObjectIdentifiers.rsaEncryption)) {
+            return new Block("RSA PRIVATE KEY", info.parsePrivateKey().toASN1Primitive().getEncoded());
+        }
+        if (algorithm.equals(X9ObjectIdentifiers.id_ecPublicKey)) {
+            return new Block("EC PRIVATE KEY", info.parsePrivateKey().toASN1Primitive().getEncoded());
+        }
+        return new Block("PRIVATE KEY", info.getEncoded());
+    }
+
+    /** Пишет блок в dst с текущей позиции; в dst должно быть не меньше block.pemLength() байт. */
+    public static ByteBuffer encode(Block block, ByteBuffer dst) {
+        dst.put(header(block.type())).put(NEWLINE);
+        byte[] der = block.der();
+        byte[] line = new byte[LINE];
+        int pos = 0;
+        for (int i = 0; i < der.length; i += 3) {
+            int b0 = der[i] & 0xFF;
+            int b1 = i + 1 < der.length ? der[i + 1] & 0xFF : 0;
+            int b2 = i + 2 < der.length ? der[i + 2] & 0xFF : 0;
+            line[pos++] = ALPHABET[b0 >>> 2];
+            line[pos++] = ALPHABET[(b0 << 4 | b1 >>> 4) & 0x3F];
+            line[pos++] = i + 1 < der.length ? ALPHABET[(b1 << 2 | b2 >>> 6) & 0x3F] : (byte) '=';
+            line[pos++] = i + 2 < der.length ? ALPHABET[b2 & 0x3F] : (byte) '=';
+            if (pos == LINE) {
+                dst.put(line, 0, pos).put(NEWLINE);
+                pos = 0;
+            }
+        }
+        if (pos > 0) dst.put(line, 0, pos).put(NEWLINE);
+        return dst.put(footer(block.type())).put(NEWLINE);
+    }
+
+    /** DER из PEM-блока (для ответов в DER по записям, которые хранятся в PEM). */
+    public static byte[] decode(ByteBuffer pem) {
+        byte[] text = new byte[pem.remaining()];
+        pem.duplicate().get(text);
+        int start = indexOf(text, (byte) '\n', 0) + 1;
+        int end = lastIndexOf(text, (byte) '\n', lastIndexOf(text, END, text.length - END.length));
+        return Base64.getMimeDecoder().decode(Arrays.copyOfRange(text, start, Math.max(start, end)));
+    }
+
+    private static byte[] header(String type) {
+        return ("-----BEGIN " + type + "-----").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] footer(String type) {
+        return ("-----END " + type + "-----").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static int lastIndexOf(byte[] a, byte[] b, int from) {
+        for (int i = from; i >= 0; i--) {
+            if (Arrays.equals(a, i, i + b.length, b, 0, b.length)) return i;
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] a, byte b, int from) {
+        for (int i = from; i < a.length; i++) if (a[i] == b) return i;
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] a, byte b, int from) {
+        for (int i = from; i >= 0; i--) if (a[i] == b) return i;
+        return -1;
+    }
+}
@@ -0,0 +1,492 @@
+package ru.nsu.nocode.server;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import ru.nsu.nocode.metrics.ServerMetrics;
+import ru.nsu.nocode.protocol.NameCache;
+import ru.nsu.nocode.protocol.Protocol;
+import ru.nsu.nocode.protocol.ProtocolException;
+import ru.nsu.nocode.protocol.Request;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Цикл ввода-вывода со своим Selector и своей очередью готовых к записи соединений.
+ * Если переданы слушающие каналы, реактор сам принимает с них подключения (режим с одним селектором).
+ */
+class Reactor implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(Reactor.class);
+    private static final long WHEEL_TICK_MS = 100;
+    // Вмещает самый длинный кадр запроса вместе с хвостом следующего
+    private static final int READ_BUFFER_SIZE = 2048;
+    private static final int MAX_POOLED_BUFFERS = 256;
+    private static final int NAME_CACHE_SIZE = 4096;
+
+    final int id;
+    private final KeyServer server;
+    private final ReactorTransport transport;
+    private final ServerMetrics metrics;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<ClientConnection> readyToWrite = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong readTimeouts = new AtomicLong();
+    private final AtomicLong writeTimeouts = new AtomicLong();
+    private final TimingWheel deadlines;
+    private final long readTimeoutNanos;
+    private final long writeTimeoutNanos;
+    private final int maxPipelined;
+    private final BufferPool readBuffers = new BufferPool(READ_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private final NameCache names = new NameCache(NAME_CACHE_SIZE);
+    // Заголовок и массив для ответа, который уходит в сокет целиком прямо из writeResponse
+    private final ByteBuffer headerScratch = ByteBuffer.allocateDirect(Protocol.FRAME_HEADER);
+    private final ByteBuffer[] single = new ByteBuffer[1];
+    private final ByteBuffer[] framed = new ByteBuffer[2];
+    private long now = System.nanoTime();
+
+    Reactor(int id, KeyServer server, ReactorTransport transport, List<ServerSocketChannel> listeners,
+            ServerConfig config) throws IOException {
+        this.id = id;
+        this.server = server;
+        this.transport = transport;
+        this.metrics = server.getMetrics();
+        this.selector = Selector.open();
+        this.deadlines = new TimingWheel(WHEEL_TICK_MS, now);
+        this.readTimeoutNanos = config.readTimeoutMs * 1_000_000L;
+        this.writeTimeoutNanos = config.writeTimeoutMs * 1_000_000L;
+        this.maxPipelined = config.maxPipelined;
+        for (ServerSocketChannel listener : listeners) {
+            listener.register(selector, SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    int connectionCount() {
+        return connections.get();
+    }
+
+    long readTimeouts() {
+        return readTimeouts.get();
+    }
+
+    long writeTimeouts() {
+        return writeTimeouts.get();
+    }
+
+    long readBufferAllocations() {
+        return readBuffers.allocatedCount();
+    }
+
+    void register(SocketChannel sc) {
+        pendingChannels.add(sc);
+        selector.wakeup();
+    }
+
+    void enqueueWrite(ClientConnection c) {
+        readyToWrite.add(c);
+        selector.wakeup();
+    }
+
+    /**
+     * Пишет готовый ответ из кэша сразу из потока реактора. Заголовок кадра собирается в буфере
+     * реактора, поэтому при полной записи на запрос выделяется только duplicate() тела.
+     * Если сокет принял не всё, остаток копируется в currentWrite и дописывается по OP_WRITE
+     * раньше всего, что стоит в очереди.
+     */
+    void writeResponse(ClientConnection c, Request request, ByteBuffer payload) {
+        c.inFlight.decrementAndGet();
+        SelectionKey key = c.channel.keyFor(selector);
+        int requestId = request.id();
+        ByteBuffer body = payload.duplicate();
+        if (c.currentWrite != null) {
+            ByteBuffer[] queued = KeyServer.response(c, requestId, body);
+            ServerEvents.trackFlush(c, queued, request);
+            c.unflushed.incrementAndGet();
+            c.writeQueue.add(queued);
+            readyToWrite.add(c);
+            return;
+        }
+        ByteBuffer[] out = single;
+        if (c.isPersistent()) {
+            Protocol.putFrameHeader(headerScratch.clear(), requestId, body.remaining()).flip();
+            out = framed;
+            out[0] = headerScratch;
+        }
+        out[out.length - 1] = body;
+        long bytes = (out == framed ? Protocol.FRAME_HEADER : 0) + body.remaining();
+        ServerEvents.ResponseFlushed flush = ServerEvents.beginFlush();
+        long started = System.nanoTime();
+        try {
+            c.channel.write(out);
+        } catch (IOException e) {
+            logger.error("Write error: {}", e.getMessage());
+            closeConnection(c, key);
+            return;
+        } finally {
+            out[out.length - 1] = null;
+        }
+        boolean headerLeft = out == framed && headerScratch.hasRemaining();
+        if (!headerLeft && !body.hasRemaining()) {
+            metrics.write.recordSince(started);
+            ServerEvents.flushed(flush, request, bytes);
+            if (!c.isPersistent()) {
+                logger.debug("Finished sending to {}", c.requestedName);
+                closeConnection(c, key);
+            } else {
+                c.lastActiveNanos = now;
+            }
+            return;
+        }
+        if (headerLeft) {
+            ByteBuffer header = ByteBuffer.allocate(headerScratch.remaining()).put(headerScratch).flip();
+            c.currentWrite = new ByteBuffer[] { header, body };
+        } else {
+            c.currentWrite = new ByteBuffer[] { body };
+        }
+        c.unflushed.incrementAndGet();
+        ServerEvents.trackFlush(c, c.currentWrite, flush, request, bytes);
+        c.writeSince = started;
+        readyToWrite.add(c);
+    }
+
+    void close() {
+        if (selector.isOpen()) {
+            selector.wakeup();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.error("Error closing selector of reactor {}: {}", id, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (server.isRunning()) {
+                registerPending();
+                processReady();
+                selector.select(deadlines.size() > 0 ? WHEEL_TICK_MS : 500);
+                now = System.nanoTime();
+                deadlines.advance(now);
+                server.onTick(now);
+                processReady();
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                    SelectionKey key = it.next(); it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) handleAccept((ServerSocketChannel) key.channel());
+                    else if (key.isReadable()) handleRead(key);
+                    else if (key.isWritable()) handleWrite(key);
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            logger.debug("Reactor {} selector closed", id);
+        } catch (IOException e) {
+            logger.error("Reactor {} failed: {}", id, e.getMessage(), e);
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel sc;
+        while ((sc = pendingChannels.poll()) != null) {
+            try {
+                sc.configureBlocking(false);
+                // Ответы постоянного соединения идут мелкими записями подряд; Nagle задержал бы их до ACK.
+                // У сокета Unix этой опции нет
+                if (sc.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+                    sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+                ClientConnection c = new ClientConnection(sc, this);
+                sc.register(selector, SelectionKey.OP_READ, c);
+                connections.incrementAndGet();
+                c.lastActiveNanos = now;
+                c.acceptedNanos = System.nanoTime();
+                ServerEvents.accepted(sc, "reactor");
+                armReadDeadline(c, now + readTimeoutNanos);
+            } catch (IOException e) {
+                logger.error("Error registering connection: {}", e.getMessage());
+                try { sc.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private void processReady() {
+        ClientConnection c;
+        while ((c = readyToWrite.poll()) != null) {
+            SelectionKey k = c.channel.keyFor(selector);
+            if (k != null && k.isValid()) {
+                int ops = SelectionKey.OP_WRITE;
+                if (c.isPersistent() && !c.inputClosed && !c.readPaused) ops |= SelectionKey.OP_READ;
+                k.interestOps(ops);
+                if (c.writeSince == 0) c.writeSince = System.nanoTime();
+                if (c.writeDeadline == null) {
+                    ClientConnection conn = c;
+                    c.writeDeadline = deadlines.schedule(now + writeTimeoutNanos, () -> onWriteTimeout(conn));
+                }
+            }
+        }
+    }
+
+    private void handleAccept(ServerSocketChannel listener) throws IOException {
+        SocketChannel sc = listener.accept();
+        if (sc == null) return;
+        logger.debug("Accepted connection from {}", sc.getRemoteAddress());
+        transport.dispatch(sc);
+    }
+
+    private void handleRead(SelectionKey key) {
+        ClientConnection c = (ClientConnection) key.attachment();
+        try {
+            if (c.readBuffer == null) c.readBuffer = readBuffers.lease();
+            int n = c.channel.read(c.readBuffer);
+            if (n == -1) {
+                if (c.isPersistent()) {
+                    c.inputClosed = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    closeIfDrained(c, key);
+                } else {
+                    closeConnection(c, key);
+                }
+                return;
+            }
+            c.readBuffer.flip();
+            if (c.protocolVersion < 0 && !detectProtocol(c, key)) return;
+            if (c.isPersistent()) {
+                // Срок чтения не переставляется на каждый запрос: сработав, таймер сверится с lastActiveNanos
+                c.lastActiveNanos = now;
+                readFrames(c, key);
+            } else {
+                readLegacy(c, key);
+            }
+        } catch (ProtocolException e) {
+            logger.warn("Protocol error: {}", e.getMessage());
+            closeConnection(c, key);
+        } catch (Exception e) {
+            logger.error("Error handling read: {}", e.getMessage(), e);
+        } finally {
+            if (c.readBuffer != null && c.readBuffer.position() == 0) {
+                readBuffers.release(c.readBuffer);
+                c.readBuffer = null;
+            }
+        }
+    }
+
+    private boolean detectProtocol(ClientConnection c, SelectionKey key) {
+        if (!c.readBuffer.hasRemaining()) {
+            c.readBuffer.compact();
+            return false;
+        }
+        int first = c.readBuffer.get(0) & 0xFF;
+        if ((first & Protocol.VERSION_MARKER) == 0) {
+            c.protocolVersion = 0;
+            return true;
+        }
+        c.readBuffer.get();
+        int version = first & ~Protocol.VERSION_MARKER;
+        if (version != Protocol.VERSION_1) {
+            logger.warn("Unsupported protocol version: {}", version);
+            c.protocolVersion = 0;
+            c.readBuffer.clear();
+            key.interestOps(0);
+            c.inFlight.incrementAndGet();
+            server.sendError(c, 0, "Unsupported protocol version " + version);
+            return false;
+        }
+        c.protocolVersion = version;
+        return true;
+    }
+
+    private void readLegacy(ClientConnection c, SelectionKey key) {
+        ByteBuffer buf = c.readBuffer;
+        int start = buf.position();
+        int end = buf.limit();
+        int zero = -1;
+        for (int i = start; i < end; i++) {
+            if (buf.get(i) == 0) {
+                zero = i;
+                break;
+            }
+        }
+        int nameLength = (zero == -1 ? end : zero) - start;
+        if (zero == -1 && nameLength <= Protocol.MAX_NAME_LENGTH) {
+            buf.compact();
+            return;
+        }
+
+        key.interestOps(0);
+        cancelReadDeadline(c);
+        c.inFlight.incrementAndGet();
+        if (nameLength > Protocol.MAX_NAME_LENGTH) {
+            buf.clear();
+            logger.warn("Name too long: {} characters (max: {})", nameLength, Protocol.MAX_NAME_LENGTH);
+            server.sendError(c, 0, "Name too long");
+            return;
+        }
+
+        String name = names.get(buf, start, nameLength);
+        buf.clear();
+        recordFirstRequest(c);
+        c.requestedName = name;
+        Request request = new Request(0, name);
+        ServerEvents.requestParsed(request, nameLength + 1, false);
+        server.handleRequest(c, request);
+    }
+
+    /**
+     * Разбирает кадры из буфера чтения. Когда без ответа остаётся maxPipelined запросов, снимает
+     * OP_READ: клиент, который не читает ответы, иначе копил бы их в writeQueue до дедлайна записи.
+     * Недоразобранные байты остаются в буфере до resumeReading.
+     */
+    private void readFrames(ClientConnection c, SelectionKey key) throws ProtocolException {
+        ByteBuffer buf = c.readBuffer;
+        Request request;
+        int start = buf.position();
+        while (true) {
+            if (c.backlog() >= maxPipelined) {
+                c.readPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                break;
+            }
+            if ((request = Protocol.decodeRequest(buf, names)) == null) break;
+            c.inFlight.incrementAndGet();
+            recordFirstRequest(c);
+            ServerEvents.requestParsed(request, buf.position() - start, true);
+            start = buf.position();
+            server.handleRequest(c, request);
+            // Ошибка записи закрыла соединение и вернула буфер в пул
+            if (c.closed.get()) return;
+        }
+        buf.compact();
+    }
+
+    private void handleWrite(SelectionKey key) {
+        ClientConnection client = (ClientConnection) key.attachment();
+        try {
+            if (client.currentWrite == null) client.currentWrite = client.writeQueue.poll();
+            while (client.currentWrite != null) {
+                client.channel.write(client.currentWrite);
+                if (hasRemaining(client.currentWrite)) return;
+                client.flushed(client.currentWrite);
+                client.unflushed.decrementAndGet();
+                client.currentWrite = client.writeQueue.poll();
+            }
+            if (client.writeDeadline != null) {
+                client.writeDeadline.cancel();
+                client.writeDeadline = null;
+            }
+            if (client.writeSince != 0) {
+                metrics.write.recordSince(client.writeSince);
+                client.writeSince = 0;
+            }
+
+            if (!client.isPersistent()) {
+                logger.debug("Finished sending to {}", client.requestedName);
+                closeConnection(client, key);
+            } else {
+                client.lastActiveNanos = now;
+                key.interestOps(client.inputClosed || client.readPaused ? 0 : SelectionKey.OP_READ);
+                if (client.readPaused && client.backlog() < maxPipelined) resumeReading(client, key);
+                closeIfDrained(client, key);
+            }
+        } catch (IOException e) {
+            logger.error("Write error: {}", e.getMessage());
+            closeConnection(client, key);
+        }
+    }
+
+    /** Очередь записи опустела: возвращает OP_READ и разбирает кадры, которые ждали в буфере. */
+    private void resumeReading(ClientConnection c, SelectionKey key) {
+        c.readPaused = false;
+        key.interestOps(SelectionKey.OP_READ);
+        if (c.readBuffer == null) return;
+        try {
+            c.readBuffer.flip();
+            readFrames(c, key);
+        } catch (ProtocolException e) {
+            logger.warn("Protocol error: {}", e.getMessage());
+            closeConnection(c, key);
+        } finally {
+            if (c.readBuffer != null && c.readBuffer.position() == 0) {
+                readBuffers.release(c.readBuffer);
+                c.readBuffer = null;
+            }
+        }
+    }
+
+    private void recordFirstRequest(ClientConnection c) {
+        if (c.acceptedNanos != 0) {
+            metrics.acceptToRead.recordSince(c.acceptedNanos);
+            c.acceptedNanos = 0;
+        }
+    }
+
+    private void closeIfDrained(ClientConnection c, SelectionKey key) {
+        if (c.inputClosed && c.isDrained()) {
+            closeConnection(c, key);
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer b : buffers) {
+            if (b.hasRemaining()) return true;
+        }
+        return false;
+    }
+
+    private void armReadDeadline(ClientConnection c, long deadlineNanos) {
+        cancelReadDeadline(c);
+        c.readDeadline = deadlines.schedule(deadlineNanos, () -> onReadTimeout(c));
+    }
+
+    private void cancelReadDeadline(ClientConnection c) {
+        if (c.readDeadline != null) {
+            c.readDeadline.cancel();
+            c.readDeadline = null;
+        }
+    }
+
+    private void onReadTimeout(ClientConnection c) {
+        c.readDeadline = null;
+        if (c.closed.get()) return;
+        long idleSince = c.lastActiveNanos;
+        // Клиент с постоянным соединением может молча ждать ответов на свои запросы
+        if (c.isPersistent() && !c.isDrained()) idleSince = now;
+        if (now - idleSince < readTimeoutNanos) {
+            armReadDeadline(c, idleSince + readTimeoutNanos);
+            return;
+        }
+        readTimeouts.incrementAndGet();
+        logger.debug("Read deadline exceeded, closing connection");
+        closeConnection(c, c.channel.keyFor(selector));
+    }
+
+    private void onWriteTimeout(ClientConnection c) {
+        c.writeDeadline = null;
+        if (c.closed.get()) return;
+        writeTimeouts.incrementAndGet();
+        logger.debug("Write deadline exceeded, closing connection");
+        closeConnection(c, c.channel.keyFor(selector));
+    }
+
+    private void closeConnection(ClientConnection c, SelectionKey key) {
+        if (c.close()) {
+            connections.decrementAndGet();
+        }
+        if (key != null) key.cancel();
+        if (c.readBuffer != null) {
+            readBuffers.release(c.readBuffer);
+            c.readBuffer = null;
+        }
+        cancelReadDeadline(c);
+        if (c.writeDeadline != null) {
+            c.writeDeadline.cancel();
+            c.writeDeadline = null;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package ru.nsu.nocode.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Неблокирующий ввод-вывод на Selector. При reactors == 0 всё делает один реактор в вызывающем потоке,
+ * иначе вызывающий поток только принимает подключения и раздаёт их N реакторам со своими потоками.
+ * Слушающих каналов может быть несколько (TCP и сокет Unix): принимаются подключения со всех,
+ * а дальше соединения обоих видов обслуживают одни и те же реакторы.
+ */
+class ReactorTransport implements Transport {
+    private static final Logger logger = LoggerFactory.getLogger(ReactorTransport.class);
+
+    private final KeyServer server;
+    private final List<ServerSocketChannel> listeners;
+    private final Selector selector;
+    private final Reactor[] reactors;
+    private final Thread[] reactorThreads;
+    private final boolean leastLoaded;
+    private int nextReactor;
+
+    ReactorTransport(KeyServer server, List<ServerSocketChannel> listeners, ServerConfig config) throws IOException {
+        this.server = server;
+        this.listeners = listeners;
+        this.leastLoaded = "least-loaded".equals(config.balance);
+        for (ServerSocketChannel listener : listeners) listener.configureBlocking(false);
+        if (config.reactors == 0) {
+            this.selector = null;
+            this.reactors = new Reactor[] { new Reactor(0, server, this, listeners, config) };
+        } else {
+            this.selector = Selector.open();
+            for (ServerSocketChannel listener : listeners) listener.register(selector, SelectionKey.OP_ACCEPT);
+            this.reactors = new Reactor[config.reactors];
+            for (int i = 0; i < reactors.length; i++) {
+                reactors[i] = new Reactor(i, server, this, List.of(), config);
+            }
+        }
+        this.reactorThreads = new Thread[reactors.length];
+    }
+
+    @Override
+    public void run() throws IOException {
+        if (selector == null) {
+            reactors[0].run();
+            return;
+        }
+        for (int i = 0; i < reactors.length; i++) {
+            Thread t = new Thread(reactors[i], "Reactor-" + i);
+            reactorThreads[i] = t;
+            t.start();
+        }
+        try {
+            while (server.isRunning()) {
+                selector.select(500);
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                    SelectionKey key = it.next(); it.remove();
+                    if (key.isValid() && key.isAcceptable()) handleAccept((ServerSocketChannel) key.channel());
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            logger.debug("Acceptor selector closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (selector != null && selector.isOpen()) {
+            selector.wakeup();
+        }
+        for (Reactor r : reactors) {
+            r.close();
+        }
+        for (Thread t : reactorThreads) {
+            if (t == null) continue;
+            try {
+                t.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            if (selector != null && selector.isOpen()) {
+                selector.close();
+                logger.info("Acceptor selector closed.");
+            }
+        } catch (IOException e) {
+            logger.error("Error closing selector: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public int connectionCount() {
+        int total = 0;
+        for (Reactor r : reactors) total += r.connectionCount();
+        return total;
+    }
+
+    @Override
+    public long readTimeouts() {
+        long total = 0;
+        for (Reactor r : reactors) total += r.readTimeouts();
+        return total;
+    }
+
+    @Override
+    public long writeTimeouts() {
+        long total = 0;
+        for (Reactor r : reactors) total += r.writeTimeouts();
+        return total;
+    }
+
+    @Override
+    public long readBufferAllocations() {
+        long total = 0;
+        for (Reactor r : reactors) total += r.readBufferAllocations();
+        return total;
+    }
+
+    private void handleAccept(ServerSocketChannel listener) throws IOException {
+        SocketChannel sc;
+        while ((sc = listener.accept()) != null) {
+            logger.debug("Accepted connection from {}", sc.getRemoteAddress());
+            dispatch(sc);
+        }
+    }
+
+    void dispatch(SocketChannel sc) {
+        Reactor target;
+        if (reactors.length == 1) {
+            target = reactors[0];
+        } else if (leastLoaded) {
+            target = reactors[0];
+            for (Reactor r : reactors) {
+                if (r.connectionCount() < target.connectionCount()) target = r;
+            }
+        } else {
+            target = reactors[nextReactor];
+            nextReactor = (nextReactor + 1) % reactors.length;
+        }
+        target.register(sc);
+    }
+
+    @Override
+    public String toString() {
+        return selector == null ? "reactor mode, single selector" : "reactor mode, " + reactors.length + " reactor(s)";
+    }
+}
@@ -0,0 +1,228 @@
+package ru.nsu.nocode.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ru.nsu.nocode.protocol.KeyAlgorithm;
+import ru.nsu.nocode.protocol.KeySpec;
+
+public class ServerConfig {
+    // -1 - без TCP, только --unix-socket; 0 - любой свободный порт
+    public int port;
+    // Путь сокета Unix для клиентов на той же машине, в дополнение к TCP или вместо него; null - выключен
+    public String unixSocket = null;
+    public int genThreads;
+    public int keyBits = 2048;
+    // null - RSA размера keyBits
+    public String keyAlgorithm = null;
+    // Наибольший размер RSA, который клиент может запросить опцией алгоритма; алгоритм по умолчанию не ограничен
+    public int maxRsaBits = 4096;
+    public int keyPoolLow = 16;
+    public int keyPoolHigh = 64;
+    public int keyPoolThreads = 0;
+    public String mode = "reactor";
+    public int reactors = 0;
+    public int cacheEntries = 1000;
+    public long cacheBytes = 32L * 1024 * 1024;
+    public long readTimeoutMs = 30_000;
+    public long writeTimeoutMs = 30_000;
+    // Запросов без ответа на одно постоянное соединение, сверх этого сервер перестаёт его читать
+    public int maxPipelined = 128;
+    public String storeDir = null;
+    public int storeSegmentMb = 256;
+    public long storeMaxAgeMs = 24L * 3600 * 1000;
+    public String balance = "round-robin";
+    // Промахи кэша сверх этого числа ждущих генерации отклоняются с RETRY_LATER; 0 - без ограничения
+    public int queueLimit = 256;
+    public int retryAfterMs = 1000;
+    // Генерации делятся по кругу между источниками: ip - адрес клиента, tenant - тег арендатора из запроса,
+    // а без тега тоже адрес
+    public String fairBy = "ip";
+    // Новых генераций в секунду на источник сверх запаса clientBurst, дальше THROTTLED; 0 - без нормы
+    public double clientRate = 0;
+    public int clientBurst = 32;
+    // -1 - выгрузка метрик выключена, 0 - любой свободный порт
+    public int metricsPort = -1;
+    // Адреса host:port всех узлов кластера через запятую, одинаковые на каждом узле; null - один узел
+    public String cluster = null;
+    // Адрес этого узла из списка cluster; null - единственный узел списка с тем же портом
+    public String clusterSelf = null;
+    // Границы адаптивного пула генерации; 0 - genThreads. При равных границах размер фиксирован
+    public int genMinThreads = 0;
+    public int genMaxThreads = 0;
+    public long genIntervalMs = 500;
+    public double genTargetWaitMs = 20;
+    public double genCpuHigh = 0.9;
+    // Горячие записи перегенерируются в фоне за столько до истечения TTL; 0 - выключено
+    public long refreshAheadMs = 30_000;
+    // Минимальная оценка частоты имени по скетчу кэша (0..15), с которой запись считается горячей
+    public int refreshMinFrequency = 4;
+    public int refreshMaxInFlight = 1;
+    // auto - выбрать реализацию генерации и подписи замером при старте, или rsa=BC,ec=SunEC,sign=SunRsaSign
+    public String keyBackend = "auto";
+    public long backendCalibrationMs = 200;
+
+    public ServerConfig(int port, int genThreads) {
+        this.port = port;
+        this.genThreads = genThreads;
+    }
+
+    /** Алгоритм для запросов, которые его не указали (в том числе все запросы старого формата). */
+    public KeySpec defaultKeySpec() {
+        return keyAlgorithm != null ? KeySpec.parse(keyAlgorithm) : KeySpec.of(KeyAlgorithm.RSA, keyBits);
+    }
+
+    public int effectiveKeyPoolThreads() {
+        return keyPoolThreads > 0 ? keyPoolThreads : Math.max(1, genThreads / 2);
+    }
+
+    public int effectiveGenMinThreads() {
+        return genMinThreads > 0 ? genMinThreads : Math.min(genThreads, effectiveGenMaxThreads());
+    }
+
+    public int effectiveGenMaxThreads() {
+        return genMaxThreads > 0 ? genMaxThreads : Math.max(genThreads, genMinThreads);
+    }
+
+    public List<String> clusterMembers() {
+        List<String> members = new ArrayList<>();
+        if (cluster == null) return members;
+        for (String m : cluster.split(",")) {
+            if (!m.isBlank()) members.add(m.trim());
+        }
+        return members;
+    }
+
+    /** Адрес этого узла в списке cluster. */
+    public String clusterSelfAddress() {
+        if (clusterSelf != null) return clusterSelf;
+        String found = null;
+        for (String m : clusterMembers()) {
+            if (m.endsWith(":" + port)) {
+                if (found != null) throw new IllegalArgumentException("Several cluster members use port " + port + ", set --cluster-self");
+                found = m;
+            }
+        }
+        if (found == null) throw new IllegalArgumentException("No cluster member uses port " + port + ", set --cluster-self");
+        return found;
+    }
+
+    public void applyOption(String option) {
+        if (!option.startsWith("--") || option.indexOf('=') < 0) {
+            throw new IllegalArgumentException("Expected --name=value, got: " + option);
+        }
+        int eq = option.indexOf('=');
+        String name = option.substring(2, eq);
+        String value = option.substring(eq + 1);
+        switch (name) {
+            case "key-bits" -> keyBits = Integer.parseInt(value);
+            case "key-alg" -> keyAlgorithm = value;
+            case "max-rsa-bits" -> maxRsaBits = Integer.parseInt(value);
+            case "pool-low" -> keyPoolLow = Integer.parseInt(value);
+            case "pool-high" -> keyPoolHigh = Integer.parseInt(value);
+            case "pool-threads" -> keyPoolThreads = Integer.parseInt(value);
+            case "mode" -> mode = value;
+            case "reactors" -> reactors = Integer.parseInt(value);
+            case "balance" -> balance = value;
+            case "cache-entries" -> cacheEntries = Integer.parseInt(value);
+            case "cache-bytes" -> cacheBytes = Long.parseLong(value);
+            case "read-timeout-ms" -> readTimeoutMs = Long.parseLong(value);
+            case "write-timeout-ms" -> writeTimeoutMs = Long.parseLong(value);
+            case "max-pipelined" -> maxPipelined = Integer.parseInt(value);
+            case "store-dir" -> storeDir = value;
+            case "store-segment-mb" -> storeSegmentMb = Integer.parseInt(value);
+            case "store-max-age-ms" -> storeMaxAgeMs = Long.parseLong(value);
+            case "metrics-port" -> metricsPort = Integer.parseInt(value);
+            case "unix-socket" -> unixSocket = value;
+            case "queue-limit" -> queueLimit = Integer.parseInt(value);
+            case "retry-after-ms" -> retryAfterMs = Integer.parseInt(value);
+            case "fair-by" -> fairBy = value;
+            case "client-rate" -> clientRate = Double.parseDouble(value);
+            case "client-burst" -> clientBurst = Integer.parseInt(value);
+            case "cluster" -> cluster = value;
+            case "gen-min" -> genMinThreads = Integer.parseInt(value);
+            case "gen-max" -> genMaxThreads = Integer.parseInt(value);
+            case "gen-interval-ms" -> genIntervalMs = Long.parseLong(value);
+            case "gen-target-wait-ms" -> genTargetWaitMs = Double.parseDouble(value);
+            case "gen-cpu-high" -> genCpuHigh = Double.parseDouble(value);
+            case "cluster-self" -> clusterSelf = value;
+            case "refresh-ahead-ms" -> refreshAheadMs = Long.parseLong(value);
+            case "refresh-min-frequency" -> refreshMinFrequency = Integer.parseInt(value);
+            case "refresh-max-in-flight" -> refreshMaxInFlight = Integer.parseInt(value);
+            case "key-backend" -> keyBackend = value;
+            case "backend-calibration-ms" -> backendCalibrationMs = Long.parseLong(value);
+            default -> throw new IllegalArgumentException("Unknown server option: " + option);
+        }
+    }
+
+    public void validate() {
+        if (genThreads < 1) throw new IllegalArgumentException("threads must be >= 1");
+        if (genMinThreads < 0 || genMaxThreads < 0 || effectiveGenMinThreads() > effectiveGenMaxThreads()) {
+            throw new IllegalArgumentException("Require 0 <= gen-min <= gen-max");
+        }
+        if (genIntervalMs < 10 || genTargetWaitMs < 0 || genCpuHigh <= 0 || genCpuHigh > 1) {
+            throw new IllegalArgumentException("Require gen-interval-ms >= 10, gen-target-wait-ms >= 0, 0 < gen-cpu-high <= 1");
+        }
+        defaultKeySpec();
+        if (keyPoolLow < 0 || keyPoolHigh < keyPoolLow) {
+            throw new IllegalArgumentException("Require 0 <= pool-low <= pool-high");
+        }
+        if (cacheEntries < 2 || cacheBytes < 1) {
+            throw new IllegalArgumentException("cache-entries must be >= 2 and cache-bytes >= 1");
+        }
+        if (readTimeoutMs < 1 || writeTimeoutMs < 1) {
+            throw new IllegalArgumentException("read-timeout-ms and write-timeout-ms must be >= 1");
+        }
+        if (maxPipelined < 1) throw new IllegalArgumentException("max-pipelined must be >= 1");
+        if (storeSegmentMb < 1 || storeSegmentMb > 2047) {
+            throw new IllegalArgumentException("store-segment-mb must be in 1..2047");
+        }
+        if (!mode.equals("reactor") && !mode.equals("virtual")) {
+            throw new IllegalArgumentException("mode must be reactor or virtual");
+        }
+        if (queueLimit < 0 || retryAfterMs < 1) {
+            throw new IllegalArgumentException("Require queue-limit >= 0 and retry-after-ms >= 1");
+        }
+        if (maxRsaBits < KeyServer.MIN_RSA_BITS) {
+            throw new IllegalArgumentException("max-rsa-bits must be >= " + KeyServer.MIN_RSA_BITS);
+        }
+        if (!fairBy.equals("ip") && !fairBy.equals("tenant")) {
+            throw new IllegalArgumentException("fair-by must be ip or tenant");
+        }
+        if (clientRate < 0 || clientBurst < 1) {
+            throw new IllegalArgumentException("Require client-rate >= 0 and client-burst >= 1");
+        }
+        if (refreshAheadMs < 0 || refreshAheadMs >= KeyServer.CACHE_TTL_MS) {
+            throw new IllegalArgumentException("refresh-ahead-ms must be in 0.." + (KeyServer.CACHE_TTL_MS - 1));
+        }
+        if (refreshMinFrequency < 0 || refreshMaxInFlight < 1) {
+            throw new IllegalArgumentException("Require refresh-min-frequency >= 0 and refresh-max-in-flight >= 1");
+        }
+        KeyBackends.parsePins(keyBackend);
+        if (backendCalibrationMs < 0) throw new IllegalArgumentException("backend-calibration-ms must be >= 0");
+        if (metricsPort < -1 || metricsPort > 65535) throw new IllegalArgumentException("metrics-port must be in -1..65535");
+        if (port < -1 || port > 65535) throw new IllegalArgumentException("port must be in -1..65535");
+        if (port == -1 && unixSocket == null) throw new IllegalArgumentException("port -1 needs --unix-socket");
+        if (unixSocket != null && unixSocket.isBlank()) throw new IllegalArgumentException("unix-socket must be a path");
+        if (cluster != null && port == -1) throw new IllegalArgumentException("cluster needs a TCP port");
+        if (cluster != null) {
+            List<String> members = clusterMembers();
+            for (String m : members) {
+                int colon = m.lastIndexOf(':');
+                if (colon <= 0) throw new IllegalArgumentException("Cluster member must be host:port, got: " + m);
+                int memberPort = Integer.parseInt(m.substring(colon + 1));
+                if (memberPort < 1 || memberPort > 65535) throw new IllegalArgumentException("Bad cluster member port: " + m);
+            }
+            if (members.size() != members.stream().distinct().count()) {
+                throw new IllegalArgumentException("Duplicate cluster members: " + cluster);
+            }
+            if (!members.contains(clusterSelfAddress())) {
+                throw new IllegalArgumentException("cluster-self " + clusterSelf + " is not in cluster " + cluster);
+            }
+        }
+        if (reactors < 0) throw new IllegalArgumentException("reactors must be >= 0");
+        if (!balance.equals("round-robin") && !balance.equals("least-loaded")) {
+            throw new IllegalArgumentException("balance must be round-robin or least-loaded");
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package ru.nsu.nocode.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import ru.nsu.nocode.protocol.Request;
+
+/**
+ * События JFR жизненного цикла запроса: приём соединения, разбор запроса, поиск в кэше, постановка
+ * генерации в очередь, сама генерация и дописанный в сокет ответ. Имя в события не пишется -
+ * только nameHash, тот же хеш, по которому кластер выбирает владельца (HashRing.hash), поэтому
+ * события одного имени связываются и между узлами.
+ *
+ * Пока запись JFR не идёт, методы Event пусты и JIT убирает и new, и ветку под isEnabled()/shouldCommit().
+ * Поэтому поля, хеш и адрес считаются только внутри этой ветки, а стек не пишется (@StackTrace(false)).
+ */
+final class ServerEvents {
+    private static final String CATEGORY = "KeyServer";
+
+    private ServerEvents() {
+    }
+
+    @Name("ru.nsu.nocode.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Description("A client connection was accepted.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ConnectionAccepted extends Event {
+        @Label("Transport")
+        String transport;
+        @Label("Remote Address")
+        String remoteAddress;
+    }
+
+    @Name("ru.nsu.nocode.RequestParsed")
+    @Label("Request Parsed")
+    @Description("A request was read from a connection and decoded.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class RequestParsed extends Event {
+        @Label("Name Hash")
+        long nameHash;
+        @Label("Request Id")
+        int requestId;
+        @Label("Request Size")
+        @DataAmount
+        int requestBytes;
+        @Label("Persistent")
+        boolean persistent;
+        @Label("Forwarded")
+        boolean forwarded;
+    }
+
+    @Name("ru.nsu.nocode.CacheLookup")
+    @Label("Cache Lookup")
+    @Description("Outcome of looking a name up: hit, pending, store, joined or miss.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class CacheLookup extends Event {
+        @Label("Name Hash")
+        long nameHash;
+        @Label("Algorithm")
+        String algorithm;
+        @Label("Result")
+        String result;
+        @Label("Response Size")
+        @Description("PEM size of the pair when it was already available, otherwise 0.")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("ru.nsu.nocode.GenerationQueued")
+    @Label("Generation Queued")
+    @Description("A key pair generation was submitted to the generator pool.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class GenerationQueued extends Event {
+        @Label("Name Hash")
+        long nameHash;
+        @Label("Algorithm")
+        String algorithm;
+        @Label("Queued Tasks")
+        int queued;
+        @Label("Pool Size")
+        int poolSize;
+    }
+
+    @Name("ru.nsu.nocode.Generation")
+    @Label("Generation")
+    @Description("Key pair generation, signing and PEM encoding on a generator thread; starts when the task leaves the queue.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Generation extends Event {
+        @Label("Name Hash")
+        long nameHash;
+        @Label("Algorithm")
+        String algorithm;
+        @Label("Queue Wait")
+        @Timespan
+        long queueWait;
+        @Label("Private Key Size")
+        @DataAmount
+        int privateKeyBytes;
+        @Label("Certificate Size")
+        @DataAmount
+        int certificateBytes;
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("ru.nsu.nocode.ResponseFlushed")
+    @Label("Response Flushed")
+    @Description("A key pair response from the moment it was ready until its last byte was written to the socket.")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ResponseFlushed extends Event {
+        @Label("Name Hash")
+        long nameHash;
+        @Label("Request Id")
+        int requestId;
+        @Label("Response Size")
+        @DataAmount
+        long bytes;
+    }
+
+    static void accepted(SocketChannel sc, String transport) {
+        ConnectionAccepted e = new ConnectionAccepted();
+        if (!e.isEnabled()) return;
+        e.transport = transport;
+        try {
+            e.remoteAddress = String.valueOf(sc.getRemoteAddress());
+        } catch (IOException ignored) {
+        }
+        e.commit();
+    }
+
+    static void requestParsed(Request request, int bytes, boolean persistent) {
+        RequestParsed e = new RequestParsed();
+        if (!e.isEnabled()) return;
+        e.nameHash = HashRing.hash(request.name());
+        e.requestId = request.id();
+        e.requestBytes = bytes;
+        e.persistent = persistent;
+        e.forwarded = request.forwarded();
+        e.commit();
+    }
+
+    /** pair - future записи, если она есть; размер пишется, только когда пара уже получена. */
+    static void cacheLookup(KeyServer.CacheKey key, String result, CompletableFuture<KeyServer.PairPem> pair) {
+        CacheLookup e = new CacheLookup();
+        if (!e.isEnabled()) return;
+        e.nameHash = HashRing.hash(key.name());
+        e.algorithm = key.spec().label();
+        e.result = result;
+        if (pair != null && pair.isDone() && !pair.isCompletedExceptionally()) e.bytes = pair.join().size();
+        e.commit();
+    }
+
+    static void generationQueued(KeyServer.CacheKey key, int queued, int poolSize) {
+        GenerationQueued e = new GenerationQueued();
+        if (!e.isEnabled()) return;
+        e.nameHash = HashRing.hash(key.name());
+        e.algorithm = key.spec().label();
+        e.queued = queued;
+        e.poolSize = poolSize;
+        e.commit();
+    }
+
+    /** Закрывает событие, начатое begin() в потоке генерации; pair == null - генерация не удалась. */
+    static void generated(Generation e, KeyServer.CacheKey key, long queueWaitNanos, KeyServer.PairPem pair) {
+        e.end();
+        if (!e.shouldCommit()) return;
+        e.nameHash = HashRing.hash(key.name());
+        e.algorithm = key.spec().label();
+        e.queueWait = queueWaitNanos;
+        e.success = pair != null;
+        if (pair != null) {
+            e.privateKeyBytes = pair.priv().remaining();
+            e.certificateBytes = pair.cert().remaining();
+        }
+        e.commit();
+    }
+
+    /** Для записи, которая дописывается в том же потоке: begin() до записи, flushed() после. */
+    static ResponseFlushed beginFlush() {
+        ResponseFlushed e = new ResponseFlushed();
+        e.begin();
+        return e;
+    }
+
+    static void flushed(ResponseFlushed e, Request request, long bytes) {
+        e.end();
+        if (!e.shouldCommit()) return;
+        e.nameHash = HashRing.hash(request.name());
+        e.requestId = request.id();
+        e.bytes = bytes;
+        e.commit();
+    }
+
+    /**
+     * Ответ, который уходит в очередь записи реактора: событие привязывается к массиву буферов и
+     * закрывается, когда реактор допишет этот массив (ClientConnection.flushed).
+     */
+    static void trackFlush(ClientConnection c, ByteBuffer[] response, Request request) {
+        ResponseFlushed e = new ResponseFlushed();
+        if (!e.isEnabled()) return;
+        e.begin();
+        long bytes = 0;
+        for (ByteBuffer b : response) bytes += b.remaining();
+        trackFlush(c, response, e, request, bytes);
+    }
+
+    /** То же для уже начатого события - записи, которую реактор не смог дописать сразу. */
+    static void trackFlush(ClientConnection c, ByteBuffer[] response, ResponseFlushed e, Request request, long bytes) {
+        if (!e.isEnabled()) return;
+        e.nameHash = HashRing.hash(request.name());
+        e.requestId = request.id();
+        e.bytes = bytes;
+        c.flushEvents.put(response, e);
+    }
+}
@@ -0,0 +1,143 @@
+package ru.nsu.nocode.server;
+
+/**
+ * Иерархическое колесо таймеров: 4 уровня по 64 слота, на каждом следующем уровне слот
+ * в 64 раза длиннее. Постановка и отмена таймера - O(1), продвижение - O(1) амортизированно
+ * на тик и на сработавший таймер. Таймер, ушедший дальше верхнего уровня, ставится
+ * в его последний слот и перекладывается при каскаде.
+ *
+ * Не потокобезопасно: им владеет один поток (цикл реактора) или вызывающий держит внешнюю блокировку.
+ */
+class TimingWheel {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_SPAN = 1L << (BITS * LEVELS);
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+    private long currentTick;
+    private int size;
+
+    TimingWheel(long tickMillis, long nowNanos) {
+        this.tickNanos = tickMillis * 1_000_000L;
+        this.startNanos = nowNanos;
+    }
+
+    Timeout schedule(long deadlineNanos, Runnable task) {
+        long tick = Math.max(ticks(deadlineNanos), currentTick + 1);
+        Timeout t = new Timeout(this, tick, task);
+        insert(t);
+        size++;
+        return t;
+    }
+
+    /** Запускает все таймеры со сроком не позже nowNanos; возвращает число сработавших. */
+    int advance(long nowNanos) {
+        long target = ticks(nowNanos);
+        int fired = 0;
+        while (currentTick < target) {
+            long tick = ++currentTick;
+            for (int level = 1; level < LEVELS; level++) {
+                if ((tick & ((1L << (BITS * level)) - 1)) != 0) break;
+                cascade(level, (int) ((tick >>> (BITS * level)) & MASK));
+            }
+            fired += fire((int) (tick & MASK), tick);
+            if (size == 0) {
+                currentTick = target;
+            }
+        }
+        return fired;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private long ticks(long nanos) {
+        return Math.max(0, (nanos - startNanos) / tickNanos);
+    }
+
+    private void insert(Timeout t) {
+        long delta = Math.min(t.expiryTick - currentTick, MAX_SPAN - 1);
+        long placed = currentTick + Math.max(0, delta);
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) level++;
+        int slot = (int) ((placed >>> (BITS * level)) & MASK);
+        t.level = level;
+        t.slot = slot;
+        t.prev = null;
+        t.next = slots[level][slot];
+        if (t.next != null) t.next.prev = t;
+        slots[level][slot] = t;
+    }
+
+    private void unlink(Timeout t) {
+        if (t.prev == null) slots[t.level][t.slot] = t.next;
+        else t.prev.next = t.next;
+        if (t.next != null) t.next.prev = t.prev;
+        t.prev = null;
+        t.next = null;
+        t.level = -1;
+    }
+
+    private void cascade(int level, int slot) {
+        Timeout t = slots[level][slot];
+        slots[level][slot] = null;
+        while (t != null) {
+            Timeout next = t.next;
+            insert(t);
+            t = next;
+        }
+    }
+
+    private int fire(int slot, long tick) {
+        // Сначала отцепляем все сработавшие: задача может отменить соседний таймер из этого же слота
+        Timeout due = null;
+        Timeout t = slots[0][slot];
+        while (t != null) {
+            Timeout next = t.next;
+            if (t.expiryTick <= tick) {
+                unlink(t);
+                size--;
+                t.next = due;
+                due = t;
+            }
+            t = next;
+        }
+        int fired = 0;
+        while (due != null) {
+            Timeout next = due.next;
+            due.next = null;
+            due.task.run();
+            fired++;
+            due = next;
+        }
+        return fired;
+    }
+
+    static final class Timeout {
+        private final TimingWheel wheel;
+        private final long expiryTick;
+        private final Runnable task;
+        private int level = -1;
+        private int slot;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimingWheel wheel, long expiryTick, Runnable task) {
+            this.wheel = wheel;
+            this.expiryTick = expiryTick;
+            this.task = task;
+        }
+
+        boolean cancel() {
+            if (level < 0) return false;
+            wheel.unlink(this);
+            wheel.size--;
+            return true;
+        }
+    }
+}
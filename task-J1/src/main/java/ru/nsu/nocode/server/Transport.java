@@ -0,0 +1,23 @@
+package ru.nsu.nocode.server;
+
+import java.io.IOException;
+
+/**
+ * Сетевая часть сервера: принимает соединения, разбирает запросы и пишет ответы.
+ * Выдачу пар (кэш, хранилище, пул генерации) делает KeyServer, общий для всех реализаций.
+ */
+interface Transport {
+    /** Обслуживает соединения в вызывающем потоке, пока сервер не остановят. */
+    void run() throws IOException;
+
+    /** Перестаёт принимать подключения и закрывает открытые. */
+    void close();
+
+    int connectionCount();
+
+    long readTimeouts();
+
+    long writeTimeouts();
+
+    long readBufferAllocations();
+}
@@ -0,0 +1,427 @@
+package ru.nsu.nocode.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import ru.nsu.nocode.protocol.Protocol;
+import ru.nsu.nocode.protocol.ProtocolException;
+import ru.nsu.nocode.protocol.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Блокирующий ввод-вывод: на каждое соединение свой виртуальный поток, который читает запросы
+ * обычными блокирующими вызовами. Кэш, пул генерации и форматы те же, что у реакторов.
+ *
+ * Дедлайн чтения - SO_TIMEOUT сокета. Дедлайн записи и TTL кэша обслуживает отдельный поток-таймер:
+ * он раз в тик закрывает соединения, чья запись длится дольше writeTimeout. У сокета Unix нет ни
+ * SO_TIMEOUT, ни потока Socket, поэтому его соединения читаются прямо из канала, а дедлайн чтения
+ * проверяет тот же таймер. Каждый слушающий канал (TCP, сокет Unix) принимает подключения в своём потоке.
+ * Ответы постоянного соединения пишутся под ReentrantLock, а не synchronized: блокирующая запись
+ * внутри synchronized приколола бы виртуальный поток к потоку-носителю.
+ */
+class VirtualThreadTransport implements Transport {
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreadTransport.class);
+    private static final long TICK_MS = 100;
+
+    private final KeyServer server;
+    private final List<ServerSocketChannel> listeners;
+    private final int readTimeoutMs;
+    private final long readTimeoutNanos;
+    private final long writeTimeoutNanos;
+    private final int maxPipelined;
+    private final ExecutorService threads = Executors.newThreadPerTaskExecutor(
+        Thread.ofVirtual().name("Conn-", 0).factory());
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "VirtualTransportTicker");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong readTimeouts = new AtomicLong();
+    private final AtomicLong writeTimeouts = new AtomicLong();
+
+    VirtualThreadTransport(KeyServer server, List<ServerSocketChannel> listeners, ServerConfig config) {
+        this.server = server;
+        this.listeners = listeners;
+        this.readTimeoutMs = (int) Math.min(Integer.MAX_VALUE, config.readTimeoutMs);
+        this.readTimeoutNanos = config.readTimeoutMs * 1_000_000L;
+        this.writeTimeoutNanos = config.writeTimeoutMs * 1_000_000L;
+        this.maxPipelined = config.maxPipelined;
+    }
+
+    @Override
+    public void run() throws IOException {
+        ticker.scheduleWithFixedDelay(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+        for (ServerSocketChannel listener : listeners.subList(1, listeners.size())) {
+            Thread.ofVirtual().name("Accept-" + listener.getLocalAddress()).start(() -> {
+                try {
+                    acceptLoop(listener);
+                } catch (IOException e) {
+                    if (server.isRunning()) logger.error("Accept failed on {}: {}", listener, e.getMessage());
+                }
+            });
+        }
+        acceptLoop(listeners.get(0));
+    }
+
+    private void acceptLoop(ServerSocketChannel listener) throws IOException {
+        try {
+            while (server.isRunning()) {
+                SocketChannel sc = listener.accept();
+                Connection c = new Connection(sc, System.nanoTime());
+                ServerEvents.accepted(sc, "virtual");
+                connections.add(c);
+                threads.execute(() -> serve(c));
+            }
+        } catch (AsynchronousCloseException e) {
+            logger.debug("Server channel closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                logger.error("Error closing server socket: {}", e.getMessage());
+            }
+        }
+        ticker.shutdownNow();
+        for (Connection c : connections) {
+            c.close();
+        }
+        threads.shutdown();
+        try {
+            if (!threads.awaitTermination(1, TimeUnit.SECONDS)) threads.shutdownNow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public int connectionCount() {
+        return connections.size();
+    }
+
+    @Override
+    public long readTimeouts() {
+        return readTimeouts.get();
+    }
+
+    @Override
+    public long writeTimeouts() {
+        return writeTimeouts.get();
+    }
+
+    @Override
+    public long readBufferAllocations() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "virtual thread mode";
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        server.onTick(now);
+        for (Connection c : connections) {
+            long started = c.writeStarted;
+            if (started != 0 && now - started > writeTimeoutNanos) {
+                writeTimeouts.incrementAndGet();
+                logger.debug("Write deadline exceeded, closing connection");
+                c.close();
+                continue;
+            }
+            // Как и с SO_TIMEOUT, постоянное соединение может молча ждать ответов на свои запросы
+            long reading = c.readStarted;
+            if (reading != 0 && now - reading > readTimeoutNanos && c.inFlight.get() == 0) {
+                readTimeouts.incrementAndGet();
+                logger.debug("Read deadline exceeded, closing connection");
+                c.close();
+            }
+        }
+    }
+
+    private void serve(Connection c) {
+        try {
+            InputStream raw;
+            if (c.unix) {
+                raw = c.new DeadlineInput();
+            } else {
+                Socket socket = c.channel.socket();
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(readTimeoutMs);
+                raw = socket.getInputStream();
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(raw));
+            int first = in.read();
+            if (first < 0) return;
+            if ((first & Protocol.VERSION_MARKER) == 0) {
+                serveLegacy(c, first, in);
+            } else if ((first & ~Protocol.VERSION_MARKER) == Protocol.VERSION_1) {
+                servePersistent(c, in);
+            } else {
+                logger.warn("Unsupported protocol version: {}", first & ~Protocol.VERSION_MARKER);
+                c.write(Protocol.legacyError("Unsupported protocol version " + (first & ~Protocol.VERSION_MARKER)));
+            }
+        } catch (SocketTimeoutException e) {
+            readTimeouts.incrementAndGet();
+            logger.debug("Read deadline exceeded, closing connection");
+        } catch (ProtocolException e) {
+            logger.warn("Protocol error: {}", e.getMessage());
+        } catch (IOException e) {
+            if (!c.closed) logger.debug("Connection error: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            c.close();
+        }
+    }
+
+    private void serveLegacy(Connection c, int first, DataInputStream in) throws IOException {
+        byte[] name = new byte[Protocol.MAX_NAME_LENGTH + 1];
+        int len = 0;
+        int b = first;
+        while (b != 0) {
+            if (len == name.length) {
+                logger.warn("Name too long: more than {} characters", Protocol.MAX_NAME_LENGTH);
+                c.write(Protocol.legacyError("Name too long"));
+                return;
+            }
+            name[len++] = (byte) b;
+            b = in.read();
+            if (b < 0) return;
+        }
+        Request request = new Request(0, new String(name, 0, len, StandardCharsets.US_ASCII));
+        c.recordFirstRequest();
+        ServerEvents.requestParsed(request, len + 1, false);
+        KeyServer.CacheKey key = server.keyFor(request);
+        CompletableFuture<KeyServer.PairPem> fut = server.issue(key, false, c.address());
+        Throwable failure = failureOf(fut);
+        if (failure == null) {
+            ByteBuffer payload = fut.join().framed().duplicate();
+            int bytes = payload.remaining();
+            ServerEvents.ResponseFlushed flush = ServerEvents.beginFlush();
+            c.write(payload);
+            ServerEvents.flushed(flush, request, bytes);
+        } else {
+            c.write(server.failureResponse(false, 0, key, failure));
+        }
+    }
+
+    private void servePersistent(Connection c, DataInputStream in) throws IOException, InterruptedException {
+        while (true) {
+            // Как и реактор, не читаем клиента, пока он не заберёт ответы на maxPipelined запросов
+            if (!c.awaitBacklogBelow(maxPipelined)) break;
+            int len;
+            try {
+                len = in.readUnsignedShort();
+            } catch (EOFException e) {
+                break;
+            } catch (SocketTimeoutException e) {
+                // Клиент с постоянным соединением может молча ждать ответов на свои запросы
+                if (c.inFlight.get() > 0) continue;
+                throw e;
+            }
+            if (len < Protocol.MIN_REQUEST_FRAME || len > Protocol.MAX_REQUEST_FRAME) {
+                throw new ProtocolException("Bad frame length: " + len);
+            }
+            byte[] frame = new byte[2 + len];
+            in.readFully(frame, 2, len);
+            ByteBuffer buf = ByteBuffer.wrap(frame).putShort(0, (short) len);
+            Request request = Protocol.decodeRequest(buf);
+            c.recordFirstRequest();
+            ServerEvents.requestParsed(request, frame.length, true);
+            c.inFlight.incrementAndGet();
+            boolean forwarded = server.forwardedBy(request, c.address());
+            CompletableFuture<KeyServer.PairPem> fut = server.issue(server.keyFor(request), forwarded,
+                server.sourceOf(request, c.address(), forwarded));
+            if (fut.isDone()) {
+                respond(c, request, fut);
+            } else {
+                // Ответ пишет новый виртуальный поток: поток пула генерации не должен ждать медленного клиента
+                fut.whenCompleteAsync((res, ex) -> respond(c, request, fut), threads);
+            }
+        }
+        c.awaitDrained();
+    }
+
+    private void respond(Connection c, Request request, CompletableFuture<KeyServer.PairPem> fut) {
+        try {
+            Throwable failure = failureOf(fut);
+            if (failure != null) {
+                c.write(server.failureResponse(true, request.id(), server.keyFor(request), failure));
+            } else {
+                ByteBuffer payload = fut.join().payload(request.format()).duplicate();
+                int bytes = Protocol.FRAME_HEADER + payload.remaining();
+                ServerEvents.ResponseFlushed flush = ServerEvents.beginFlush();
+                c.write(Protocol.frameHeader(request.id(), payload.remaining()), payload);
+                ServerEvents.flushed(flush, request, bytes);
+            }
+        } catch (IOException e) {
+            if (!c.closed) logger.debug("Write error: {}", e.getMessage());
+            c.close();
+        } finally {
+            c.finishRequest();
+        }
+    }
+
+    /** Ждёт завершения и возвращает ошибку или null, если пара получена. */
+    private static Throwable failureOf(CompletableFuture<?> fut) {
+        return fut.handle((res, ex) -> ex).join();
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        long acceptedNanos;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final ReentrantLock writeLock = new ReentrantLock();
+        final Condition drained = writeLock.newCondition();
+        volatile long writeStarted;
+        volatile boolean closed;
+        // Адрес клиента для FairScheduler; трогает только поток соединения
+        private String address;
+        final boolean unix;
+        // Для сокета Unix: начало чтения, которое сейчас ждёт данных, 0 - не читаем
+        volatile long readStarted;
+
+        Connection(SocketChannel channel, long acceptedNanos) throws IOException {
+            this.channel = channel;
+            this.acceptedNanos = acceptedNanos;
+            this.unix = !(channel.getLocalAddress() instanceof InetSocketAddress);
+        }
+
+        String address() {
+            if (address == null) address = FairScheduler.addressOf(channel);
+            return address;
+        }
+
+        /** Трогает только поток соединения. */
+        void recordFirstRequest() {
+            if (acceptedNanos != 0) {
+                server.getMetrics().acceptToRead.recordSince(acceptedNanos);
+                acceptedNanos = 0;
+            }
+        }
+
+        void write(ByteBuffer... response) throws IOException {
+            long ready = System.nanoTime();
+            writeLock.lock();
+            try {
+                writeStarted = System.nanoTime();
+                while (hasRemaining(response)) channel.write(response);
+                server.getMetrics().write.recordSince(ready);
+            } finally {
+                writeStarted = 0;
+                writeLock.unlock();
+            }
+        }
+
+        void finishRequest() {
+            int left = inFlight.decrementAndGet();
+            // Дедлайн чтения считается заново от последнего ответа, как и очередной SO_TIMEOUT
+            if (left == 0 && readStarted != 0) readStarted = System.nanoTime();
+            // Будим и awaitDrained, и поток соединения, который ждёт в awaitBacklogBelow
+            if (left != 0 && left != maxPipelined - 1) return;
+            writeLock.lock();
+            try {
+                drained.signalAll();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /** Ждёт, пока запросов без ответа станет меньше limit; false - соединение закрыто. */
+        boolean awaitBacklogBelow(int limit) throws InterruptedException {
+            if (inFlight.get() < limit) return true;
+            writeLock.lock();
+            try {
+                while (inFlight.get() >= limit && !closed) {
+                    drained.await();
+                }
+                return !closed;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /** Клиент закрыл запись: дожидаемся ответов на уже принятые запросы. */
+        void awaitDrained() throws InterruptedException {
+            writeLock.lock();
+            try {
+                while (inFlight.get() > 0 && !closed) {
+                    drained.await();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /** Блокирующее чтение прямо из канала с отметкой для дедлайна чтения в tick(). */
+        final class DeadlineInput extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                readStarted = System.nanoTime();
+                try {
+                    return channel.read(ByteBuffer.wrap(b, off, len));
+                } finally {
+                    readStarted = 0;
+                }
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            connections.remove(this);
+            // Сначала закрываем канал: зависшая запись под writeLock прервётся и отпустит блокировку
+            try { channel.close(); } catch (IOException ignored) {}
+            writeLock.lock();
+            try {
+                drained.signalAll();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private static boolean hasRemaining(ByteBuffer[] buffers) {
+            for (ByteBuffer b : buffers) {
+                if (b.hasRemaining()) return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+#!/bin/bash
+
+echo "=== Тест кластера: каждое имя генерируется один раз ==="
+
+# Аргументы: число узлов, первый порт, число имён
+NODES=${1:-3}
+BASE_PORT=${2:-9101}
+NAMES=${3:-30}
+
+JAR=build/libs/Task_1J.jar
+WORK=$(mktemp -d)
+PEERS=""
+for ((i = 0; i < NODES; i++)); do
+    PEERS="$PEERS${PEERS:+,}127.0.0.1:$((BASE_PORT + i))"
+done
+
+echo "Узлы: $PEERS"
+PIDS=()
+for ((i = 0; i < NODES; i++)); do
+    java -jar $JAR server $((BASE_PORT + i)) 2 ca.key "CN=TestCA" --cluster=$PEERS > "$WORK/node$i.log" 2>&1 &
+    PIDS+=($!)
+done
+trap 'kill ${PIDS[@]} 2>/dev/null; rm -rf "$WORK"' EXIT
+
+# Ждем запуска узлов
+sleep 3
+
+NAME_LIST=$(seq -s, -f "cluster_user%g" 1 "$NAMES")
+
+echo ""
+echo "1. Одни и те же имена через каждый узел"
+echo "======================================="
+for ((i = 0; i < NODES; i++)); do
+    mkdir -p "$WORK/client$i"
+    (cd "$WORK/client$i" && java -cp "$OLDPWD/$JAR" ru.nsu.nocode.client.KeyClient 127.0.0.1 $((BASE_PORT + i)) "$NAME_LIST" --persistent > /dev/null)
+done
+
+FAILED=0
+for name in ${NAME_LIST//,/ }; do
+    for ((i = 1; i < NODES; i++)); do
+        if ! cmp -s "$WORK/client0/$name.crt" "$WORK/client$i/$name.crt"; then
+            echo "Разные сертификаты для $name от узлов 0 и $i"
+            FAILED=1
+        fi
+    done
+done
+
+echo ""
+echo "2. Сколько раз сгенерировано каждое имя"
+echo "======================================="
+for ((i = 0; i < NODES; i++)); do
+    echo "Узел $i ($((BASE_PORT + i))): сгенерировано $(grep -c 'Generated key pair for: cluster_user' "$WORK/node$i.log")"
+done
+DUPLICATES=$(cat "$WORK"/node*.log | grep -o 'Generated key pair for: cluster_user[0-9]*' | sort | uniq -d)
+if [ -n "$DUPLICATES" ]; then
+    echo "Сгенерированы больше одного раза:"
+    echo "$DUPLICATES"
+    FAILED=1
+fi
+
+echo ""
+if [ $FAILED -eq 0 ]; then
+    echo "=== OK: $NAMES имён, каждое сгенерировано один раз, все узлы отдают одинаковые сертификаты ==="
+else
+    echo "=== ОШИБКА ==="
+fi
+exit $FAILED